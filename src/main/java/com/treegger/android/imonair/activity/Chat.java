@@ -1,10 +1,8 @@
 package com.treegger.android.imonair.activity;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -17,7 +15,6 @@ import android.text.TextWatcher;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.KeyEvent;
-import android.view.LayoutInflater;
 import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
@@ -26,11 +23,13 @@ import android.view.ContextMenu.ContextMenuInfo;
 import android.view.View.OnClickListener;
 import android.view.View.OnCreateContextMenuListener;
 import android.view.inputmethod.EditorInfo;
+import android.widget.AbsListView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.TextView;
+import android.widget.AbsListView.OnScrollListener;
 import android.widget.AdapterView.AdapterContextMenuInfo;
 
 import com.treegger.android.imonair.R;
@@ -161,7 +160,7 @@ public class Chat
     {
         super.onTreeggerService();
         
-        VCardResponse vcard = treeggerService.vcards.get( jid );
+        VCardResponse vcard = treeggerService.getVCard( jid );
         TextView username = (TextView) findViewById( R.id.window_username );
         if( vcard != null ) username.setText( vcard.getFn() );
         updatePresenceTitle();
@@ -194,18 +193,17 @@ public class Chat
     }
 
     
-    private Boolean composing = false;
-    private Timer composingTimer;
-    public AtomicLong lastComposingActivity = new AtomicLong();
+    private static final long COMPOSING_TIMEOUT = 5*1000;
+    
+    private final Object composingLock = new Object();
+    private boolean composing = false;
 
-    private class ComposingTask extends TimerTask
+    // each keystroke postpones the end of the composing state
+    private final Runnable composingTimeoutTask = new Runnable()
     {
-        @Override
         public void run()
         {
-            long now = System.currentTimeMillis();
-            if( lastComposingActivity.get() + 5*1000 < now  )
-                stopComposingMessage();
+            stopComposingMessage();
         }
     };
 
@@ -214,14 +212,12 @@ public class Chat
     {
         if( treeggerService != null)
         {
-            synchronized ( composing )
+            synchronized ( composingLock )
             {                
-                lastComposingActivity.set( System.currentTimeMillis() );
+                treeggerService.getScheduler().schedule( composingTimeoutTask, composingTimeoutTask, COMPOSING_TIMEOUT );
                 if( !composing )
                 {
                     composing = true;
-                    composingTimer = new Timer();
-                    composingTimer.schedule( new ComposingTask(), 1000, 1000 );
                     treeggerService.sendStateNotificationMessage( jid, true, false, false, false );
                 }
             }
@@ -231,17 +227,12 @@ public class Chat
     {
         if( treeggerService != null )
         {
-            synchronized ( composing )
+            synchronized ( composingLock )
             {                
                 if( composing )
                 {
                     treeggerService.sendStateNotificationMessage( jid, false, false, true, false );
-                    if( composingTimer != null )
-                    {
-                        composingTimer.cancel();
-                        composingTimer.purge();
-                        composingTimer = null;
-                    }
+                    treeggerService.getScheduler().cancel( composingTimeoutTask );
                     composing = false;
                 }
             }
@@ -296,21 +287,102 @@ public class Chat
 
         
         ChatMessageAdapter chatMessageAdapter = (ChatMessageAdapter)chatList.getAdapter();
+        List<ChatMessage> textMessages = treeggerService.getTextMessageList( jid );
         if( chatMessageAdapter == null )
         {
-            List<ChatMessage> textMessages = treeggerService.getTextMessageList( jid );
             if( textMessages != null )
             {
-                chatMessageAdapter = new ChatMessageAdapter( this, R.layout.chatmessage, textMessages );
+                chatMessageAdapter = new ChatMessageAdapter( this, R.layout.chatmessage, new ArrayList<ChatMessage>() );
+                chatMessageAdapter.appendNewMessages( textMessages );
                 chatList.setAdapter( chatMessageAdapter );
+                chatList.setOnScrollListener( new OnScrollListener()
+                {
+                    @Override
+                    public void onScroll( AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount )
+                    {
+                        if( firstVisibleItem == 0 && totalItemCount > 0 ) loadEarlierMessages();
+                    }
+                    
+                    @Override
+                    public void onScrollStateChanged( AbsListView view, int scrollState )
+                    {
+                    }
+                } );
             }
         }
-        else
+        else if( textMessages != null )
         {
-            chatMessageAdapter.notifyDataSetChanged();
+            chatMessageAdapter.appendNewMessages( textMessages );
         }
     }
     
+    // set on the main thread only
+    private boolean loadingEarlierMessages = false;
+
+    /**
+     * Reads the previous page of the history on a background thread, the messages are prepended on the main thread.
+     */
+    private void loadEarlierMessages()
+    {
+        ListView chatList = (ListView) findViewById( R.id.chat_list );
+        final ChatMessageAdapter chatMessageAdapter = (ChatMessageAdapter)chatList.getAdapter();
+        if( loadingEarlierMessages || treeggerService == null || chatMessageAdapter == null ) return;
+        final long before = chatMessageAdapter.getFirstSeq();
+        if( before <= 0 ) return;
+
+        loadingEarlierMessages = true;
+        final TreeggerService service = treeggerService;
+        final String userAndHost = jid;
+        new Thread( new Runnable()
+        {
+            public void run()
+            {
+                final List<ChatMessage> earlierMessages = service.getEarlierTextMessages( userAndHost, before, HISTORY_PAGE_SIZE );
+                runOnUiThread( new Runnable()
+                {
+                    public void run()
+                    {
+                        loadingEarlierMessages = false;
+                        ListView chatList = (ListView) findViewById( R.id.chat_list );
+                        if( chatList.getAdapter() != chatMessageAdapter ) return;
+                        int count = chatMessageAdapter.prependEarlierMessages( before, earlierMessages );
+                        if( count > 0 )
+                        {
+                            // stay on the message that was on top instead of jumping to the last one
+                            chatList.setTranscriptMode( AbsListView.TRANSCRIPT_MODE_NORMAL );
+                            chatList.setSelection( count );
+                        }
+                    }
+                } );
+            }
+        }, "ChatHistoryLoader" ).start();
+    }
+    
+    /**
+     * Reads the messages evicted from the window before being shown on a background thread,
+     * they are inserted on the main thread.
+     */
+    private void loadMissedMessages( final ChatMessageAdapter chatMessageAdapter, final long before, final int count )
+    {
+        if( treeggerService == null ) return;
+        final TreeggerService service = treeggerService;
+        final String userAndHost = jid;
+        new Thread( new Runnable()
+        {
+            public void run()
+            {
+                final List<ChatMessage> missedMessages = service.getEarlierTextMessages( userAndHost, before, count );
+                runOnUiThread( new Runnable()
+                {
+                    public void run()
+                    {
+                        chatMessageAdapter.insertMissedMessages( before, missedMessages );
+                    }
+                } );
+            }
+        }, "ChatHistoryLoader" ).start();
+    }
+    
     
     @Override
     public boolean onContextItemSelected( MenuItem menuItem )
@@ -322,24 +394,116 @@ public class Chat
     }
 
     
+    private static final int HISTORY_PAGE_SIZE = 50;
+    
+    /**
+     * Owns its list of messages: the live messages of the service followed as they arrive,
+     * preceded by the pages of history loaded on scroll back.
+     */
     public class ChatMessageAdapter extends ArrayAdapter<ChatMessage>
     {
         private SimpleDateFormat sdf = new SimpleDateFormat("HH:mm");
         
+        private List<ChatMessage> messages;
+        
         public ChatMessageAdapter( Context context, int textViewResourceId, List<ChatMessage> messages )
         {
             super( context, textViewResourceId, messages );
+            this.messages = messages;
         }
+        
+        /**
+         * @param textMessages snapshot of the last messages of the conversation, null for the ones already evicted
+         */
+        public void appendNewMessages( List<ChatMessage> textMessages )
+        {
+            ChatMessage last = messages.isEmpty() ? null : messages.get( messages.size() - 1 );
+            int start = 0;
+            for( int i = textMessages.size() - 1; i >= 0; i-- )
+            {
+                ChatMessage message = textMessages.get( i );
+                if( message == null || message == last || last != null && last.seq >= 0 && message.seq >= 0 && message.seq <= last.seq )
+                {
+                    start = i + 1;
+                    break;
+                }
+            }
+            
+            // messages evicted from the window before being shown are read back from the history
+            if( last != null && last.seq >= 0 && start < textMessages.size() )
+            {
+                ChatMessage first = textMessages.get( start );
+                long missed = first.seq - last.seq - 1;
+                if( missed > HISTORY_PAGE_SIZE )
+                {
+                    // too many to fill: the list starts again at the new messages, scrolling back reads the rest
+                    messages.clear();
+                }
+                else if( missed > 0 )
+                {
+                    loadMissedMessages( this, first.seq, (int)missed );
+                }
+            }
+            for( int i = start; i < textMessages.size(); i++ )
+            {
+                messages.add( textMessages.get( i ) );
+            }
+            notifyDataSetChanged();
+        }
+        
+        /**
+         * @param before the sequence number of the message following the missed ones
+         * @return the number of messages inserted, 0 if the gap is no longer there
+         */
+        public int insertMissedMessages( long before, List<ChatMessage> missedMessages )
+        {
+            if( missedMessages.isEmpty() ) return 0;
+            long after = missedMessages.get( 0 ).seq - 1;
+            for( int i = 1; i < messages.size(); i++ )
+            {
+                if( messages.get( i ).seq == before && messages.get( i - 1 ).seq == after )
+                {
+                    messages.addAll( i, missedMessages );
+                    notifyDataSetChanged();
+                    return missedMessages.size();
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * @return the sequence number of the first message shown, -1 if unknown
+         */
+        public long getFirstSeq()
+        {
+            return messages.isEmpty() ? -1 : messages.get( 0 ).seq;
+        }
+
+        /**
+         * @param before the sequence number of the first message when the page was read
+         * @return the number of messages prepended, 0 if the list changed meanwhile
+         */
+        public int prependEarlierMessages( long before, List<ChatMessage> earlierMessages )
+        {
+            if( earlierMessages.isEmpty() || getFirstSeq() != before ) return 0;
+            messages.addAll( 0, earlierMessages );
+            notifyDataSetChanged();
+            return earlierMessages.size();
+        }
+
         public void drawAvatar( ImageView image, String jid )
         {
             if( treeggerService != null )
             {
-                VCardResponse vcard = treeggerService.vcards.get( jid );
+                VCardResponse vcard = treeggerService.getVCard( jid );
                 if ( vcard != null && vcard.hasPhotoExternal() )
                 {
                     ImageLoader.load( getContext(), image, vcard.getPhotoExternal() );
+                    return;
                 }
             }
+            image.setTag( null );
+            image.setImageDrawable( getCachedDrawable( R.drawable.default_avatar_48x48 ) );
         }
 
         
@@ -347,24 +511,44 @@ public class Chat
         @Override
         public View getView( int position, View convertView, ViewGroup parent )
         {
-            LayoutInflater inflater = getLayoutInflater();
-            View row = inflater.inflate( R.layout.chatmessage, parent, false );
-            row.setBackgroundColor( 0xff222222 );
+            View row = convertView;
+            MessageRow messageRow;
+            if( row == null )
+            {
+                row = getLayoutInflater().inflate( R.layout.chatmessage, parent, false );
+                row.setBackgroundColor( 0xff222222 );
+                messageRow = new MessageRow();
+                messageRow.label = (TextView) row.findViewById( R.id.message );
+                messageRow.dateLabel = (TextView) row.findViewById( R.id.date );
+                messageRow.photo = (ImageView) row.findViewById( R.id.photo );
+                row.setTag( messageRow );
+            }
+            else
+            {
+                messageRow = (MessageRow) row.getTag();
+            }
             
+            // messages never change once received
             ChatMessage message = getItem( position );
+            if( messageRow.message == message ) return row;
+            messageRow.message = message;
             
-            TextView label = (TextView) row.findViewById( R.id.message );
-            label.setText( message.text );
-
-            TextView dateLabel = (TextView) row.findViewById( R.id.date );
-            dateLabel.setText( sdf.format( message.date ) );
-            
-            ImageView photo=(ImageView)row.findViewById(R.id.photo);
-            drawAvatar( photo, message.userAndHost );
+            messageRow.label.setText( message.text );
+            messageRow.dateLabel.setText( sdf.format( message.date ) );
+            drawAvatar( messageRow.photo, message.userAndHost );
             return row;
         }
 
         
     }
 
+    // child views of a chat message line, and the message they show
+    private static class MessageRow
+    {
+        TextView label;
+        TextView dateLabel;
+        ImageView photo;
+        ChatMessage message;
+    }
+
 }
@@ -1,15 +1,12 @@
 package com.treegger.android.imonair.activity;
 
-import java.util.Comparator;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
-import android.content.Context;
 import android.content.Intent;
 import android.graphics.Typeface;
 import android.os.Bundle;
-import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -17,6 +14,7 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.ImageView;
 import android.widget.ListView;
 import android.widget.Spinner;
@@ -26,6 +24,8 @@ import android.widget.AdapterView.OnItemSelectedListener;
 
 import com.treegger.android.imonair.R;
 import com.treegger.android.imonair.component.ImageLoader;
+import com.treegger.android.imonair.component.SortedRoster;
+import com.treegger.android.imonair.service.ContactState;
 import com.treegger.android.imonair.service.TreeggerService;
 import com.treegger.android.imonair.service.TreeggerWebSocketManager;
 import com.treegger.protobuf.WebSocketProto.RosterItem;
@@ -38,39 +38,92 @@ public class RostersView
 
     private boolean rosterInitialized = false;
     @Override
-    public void onMessageType( int messageType )
+    public void onMessageType( int messageType, Set<String> jids )
     {
         if( !rosterInitialized ) super.onMessageType( messageType );
         
         switch ( messageType )
         {
             case TreeggerService.MESSAGE_TYPE_ROSTER_UPDATE:
-                updateRosters();
+                if( !updateRosters() ) updateRosterItems( jids );
                 break;
                 
+            case TreeggerService.MESSAGE_TYPE_PRESENCE_UPDATE:
+            case TreeggerService.MESSAGE_TYPE_COMPOSING:
+                updateRosterPresences( jids );
+                break;
+
             case TreeggerService.MESSAGE_TYPE_ROSTER_ADAPTER_UPDATE:
             case TreeggerService.MESSAGE_TYPE_TEXTMESSAGE_UPDATE:
             case TreeggerService.MESSAGE_TYPE_VCARD_UPDATE:
-            case TreeggerService.MESSAGE_TYPE_PRESENCE_UPDATE:
-            case TreeggerService.MESSAGE_TYPE_COMPOSING:
-                updateRosterAdapter();
+                updateRosterAdapter( jids );
                 break;
         }
 
     }
 
-    
-    private void updateRosterAdapter()
+    private RosterItemAdapter getRosterAdapter()
     {
         ListView rosterListView = (ListView) findViewById( R.id.roster_list );
-        RosterItemAdapter rosterAdapter = (RosterItemAdapter)rosterListView.getAdapter();
-        if( rosterAdapter!=null )
+        return (RosterItemAdapter)rosterListView.getAdapter();
+    }
+    
+    private void updateRosterItems( Set<String> jids )
+    {
+        RosterItemAdapter rosterAdapter = getRosterAdapter();
+        if( rosterAdapter != null && treeggerService != null )
+        {
+            if( jids == null )
+            {
+                rosterAdapter.load( treeggerService.getAllRosterItems() );
+            }
+            else
+            {
+                for( String jid : jids )
+                {
+                    RosterItem rosterItem = treeggerService.getRosterItem( jid );
+                    if( rosterItem != null ) rosterAdapter.roster.put( rosterItem, getPresenceType( jid ) );
+                    else rosterAdapter.roster.remove( jid );
+                }
+            }
+            rosterAdapter.notifyDataSetChanged();
+        }
+    }
+    private void updateRosterPresences( Set<String> jids )
+    {
+        RosterItemAdapter rosterAdapter = getRosterAdapter();
+        if( rosterAdapter != null )
+        {
+            if( jids == null )
+            {
+                rosterAdapter.roster.rerank( rosterAdapter.ranker );
+                rosterAdapter.roster.touchAll();
+            }
+            else
+            {
+                for( String jid : jids )
+                {
+                    rosterAdapter.roster.setRank( jid, getPresenceType( jid ) );
+                    rosterAdapter.roster.touch( jid );
+                }
+            }
+            rosterAdapter.notifyDataSetChanged();
+        }
+    }
+    private void updateRosterAdapter( Set<String> jids )
+    {
+        RosterItemAdapter rosterAdapter = getRosterAdapter();
+        if( rosterAdapter != null )
         {
-            rosterAdapter.sort();
-            rosterAdapter.notifyDataSetChanged();                
+            if( jids == null ) rosterAdapter.roster.touchAll();
+            else for( String jid : jids ) rosterAdapter.roster.touch( jid );
+            rosterAdapter.notifyDataSetChanged();
         }
     }
-    private void updateRosters()
+    /**
+     * @return true when the roster adapter has been created
+     */
+    private boolean updateRosters()
     {
         if ( treeggerService != null )
         {
@@ -83,12 +136,14 @@ public class RostersView
                 if( rosterItemsList != null && rosterItemsList.size() > 0 )
                 {
                     rosterInitialized = true;
-                    rosterAdapter = new RosterItemAdapter( this, R.layout.rosterline, rosterItemsList );
-                    rosterAdapter.sort();
+                    rosterAdapter = new RosterItemAdapter();
+                    rosterAdapter.load( rosterItemsList );
                     rosterListView.setAdapter( rosterAdapter );
+                    return true;
                 }
             }
         }        
+        return false;
     }
     
     private void updatePresenceSpinner()
@@ -184,8 +239,7 @@ public class RostersView
     public void onResume()
     {
         super.onResume();
-        updateRosters();
-        updateRosterAdapter();        
+        if( !updateRosters() ) updateRosterPresences( null );
         updatePresenceSpinner();
     }
 
@@ -245,83 +299,97 @@ public class RostersView
     // ------------------------------------------------------------------------------------------------
     // ------------------------------------------------------------------------------------------------    
     public class RosterItemAdapter
-        extends ArrayAdapter<RosterItem>
+        extends BaseAdapter
     {
+        private SortedRoster roster = new SortedRoster();
 
-        public RosterItemAdapter( Context context, int textViewResourceId, List<RosterItem> rosterItems )
+        private final SortedRoster.Ranker ranker = new SortedRoster.Ranker()
         {
-            super( context, textViewResourceId, rosterItems );
-        }
+            public int rankOf( RosterItem rosterItem )
+            {
+                return getPresenceType( rosterItem.getJid() );
+            }
+        };
 
+        public void load( List<RosterItem> rosterItems )
+        {
+            roster.load( rosterItems, ranker );
+        }
         
-        public void sort()
+        public List<RosterItem> getRosterItems()
         {
-            super.sort( new Comparator<RosterItem>()
-            {
-                private Map<String,Integer> presences = new HashMap<String,Integer>();
-                
-                private int getCachedPresence( String jid )
-                {
-                    Integer type = presences.get( jid );
-                    if( type == null )
-                    {
-                        type = getPresenceType( jid );
-                        presences.put( jid, type );
-                    }
-                    return type;
-                }
-                
-                @Override
-                public int compare( RosterItem item1, RosterItem item2 )
-                {
-                    
-                    
-                    int presentType1 = getCachedPresence( item1.getJid() );
-                    int presentType2 = getCachedPresence( item2.getJid() );
-                    int typeDelta =  presentType1 - presentType2;
-                    if ( typeDelta == 0 )
-                        return item1.getName().toLowerCase().compareTo( item2.getName().toLowerCase() );
-                    else
-                    {
-                        return typeDelta;
-                    }
-                }
+            List<RosterItem> rosterItems = new ArrayList<RosterItem>( roster.size() );
+            for( int i = 0; i < roster.size(); i++ ) rosterItems.add( roster.get( i ).getRosterItem() );
+            return rosterItems;
+        }
+
+        @Override
+        public int getCount()
+        {
+            return roster.size();
+        }
+
+        @Override
+        public RosterItem getItem( int position )
+        {
+            return roster.get( position ).getRosterItem();
+        }
 
-            } );
+        @Override
+        public long getItemId( int position )
+        {
+            return position;
         }
 
-        public void drawAvatar( ImageView image, String jid )
+        public void drawAvatar( ImageView image, VCardResponse vcard )
         {
-            if( treeggerService != null )
+            if ( vcard != null && vcard.hasPhotoExternal() )
             {
-                VCardResponse vcard = treeggerService.vcards.get( jid );
-                if ( vcard != null && vcard.hasPhotoExternal() )
-                {
-                    ImageLoader.load( getContext(), image, vcard.getPhotoExternal() );
-                }
+                ImageLoader.load( RostersView.this, image, vcard.getPhotoExternal() );
+                return;
             }
+            image.setTag( null );
+            image.setImageDrawable( getCachedDrawable( R.drawable.default_avatar_48x48 ) );
         }
 
         @Override
         public View getView( int position, View convertView, ViewGroup parent )
         {
-            LayoutInflater inflater = getLayoutInflater();
-            View row = inflater.inflate( R.layout.rosterline, parent, false );
-            TextView label = (TextView) row.findViewById( R.id.label );
-
-            RosterItem rosterItem = getItem( position );
-
-            ImageView image = (ImageView) row.findViewById( R.id.photo );
-            drawAvatar( image, rosterItem.getJid() );
+            View row = convertView;
+            RosterRow rosterRow;
+            if( row == null )
+            {
+                row = getLayoutInflater().inflate( R.layout.rosterline, parent, false );
+                rosterRow = new RosterRow();
+                rosterRow.label = (TextView) row.findViewById( R.id.label );
+                rosterRow.image = (ImageView) row.findViewById( R.id.photo );
+                rosterRow.bullet = (ImageView) row.findViewById( R.id.bullet );
+                row.setTag( rosterRow );
+            }
+            else
+            {
+                rosterRow = (RosterRow) row.getTag();
+            }
 
-            ImageView bullet = (ImageView) row.findViewById( R.id.bullet );
+            SortedRoster.Contact contact = roster.get( position );
+            if( rosterRow.contact == contact && rosterRow.version == contact.getVersion() ) return row;
+            // without the service the row is drawn empty, and drawn again once it is bound
+            TreeggerService service = treeggerService;
+            rosterRow.contact = service != null ? contact : null;
+            rosterRow.version = contact.getVersion();
             
+            RosterItem rosterItem = contact.getRosterItem();
+            TextView label = rosterRow.label;
+            ImageView bullet = rosterRow.bullet;
+
+            // the row is drawn from a single consistent state of the contact
+            ContactState contactState = service != null ? service.getContactState( rosterItem.getJid() ) : ContactState.EMPTY;
+            drawAvatar( rosterRow.image, contactState.vcard );
             
             String text = rosterItem.getName();
             label.setText( text );
-            int presenceType = getPresenceType( rosterItem.getJid() );
 
-            switch ( presenceType )
+            switch ( contact.getRank() )
             {
                 case PRESENCE_TYPE_AVAILABLE:
                 case PRESENCE_TYPE_AWAY:
@@ -335,28 +403,30 @@ public class RostersView
                     break;
             }
             
-            if ( treeggerService.hasMessageFrom( rosterItem.getJid() ) )
+            if ( contactState.hasUnreadMessages() )
             {
-                bullet.setImageDrawable( getResources().getDrawable(R.drawable.hasmessage) );
+                bullet.setImageDrawable( getCachedDrawable( R.drawable.hasmessage ) );
                 label.setTypeface( Typeface.DEFAULT_BOLD );
                 row.setBackgroundColor( 0x440F24BF );
                 label.setTextColor( 0xffffffff );
             }
             else
             {
-                updatePresenceType( rosterItem.getJid(), bullet );
+                updatePresenceType( contactState, bullet );
                 label.setTypeface( Typeface.DEFAULT );
             }
 
-            //ImageView icon=(ImageView)row.findViewById(R.id.icon);
             return row;
         }
-        
-        
-        
-        
-
     }
 
-
+    // child views of a roster line, and the contact version they show
+    private static class RosterRow
+    {
+        TextView label;
+        ImageView image;
+        ImageView bullet;
+        SortedRoster.Contact contact;
+        int version;
+    }
 }
@@ -1,6 +1,10 @@
 package com.treegger.android.imonair.activity;
 
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
 import android.app.Activity;
 import android.app.Dialog;
 import android.app.ProgressDialog;
@@ -10,11 +14,15 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
+import android.graphics.drawable.Drawable;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.util.SparseArray;
 import android.widget.ImageView;
 
 import com.treegger.android.imonair.R;
+import com.treegger.android.imonair.service.ContactState;
+import com.treegger.android.imonair.service.EventDispatcher;
 import com.treegger.android.imonair.service.TreeggerService;
 import com.treegger.protobuf.WebSocketProto.Presence;
 
@@ -27,12 +35,14 @@ public abstract class TreeggerActivity extends Activity {
         public void onServiceConnected( ComponentName className, IBinder rawBinder )
         {
             treeggerService = ( (TreeggerService.LocalBinder) rawBinder ).getService();
+            if( resumed ) treeggerService.addListener( serviceListener );
             updateTitle();
             onTreeggerService();
         }
 
         public void onServiceDisconnected( ComponentName className )
         {
+            treeggerService.removeListener( serviceListener );
             treeggerService = null;
         }
     };
@@ -49,11 +59,31 @@ public abstract class TreeggerActivity extends Activity {
             {
                 updateTitle();
                 int messageType = intent.getIntExtra( TreeggerService.EXTRA_MESSAGE_TYPE, -1 );
-                onMessageType( messageType );
+                String[] jids = intent.getStringArrayExtra( TreeggerService.EXTRA_JIDS );
+                onMessageType( messageType, jids == null ? null : new HashSet<String>( Arrays.asList( jids ) ) );
             }
         }
     };
     
+    // used instead of the broadcasts while the activity is in foreground and bound
+    private EventDispatcher.Listener serviceListener = new EventDispatcher.Listener()
+    {
+        public void onServiceEvent( int messageType, Set<String> jids )
+        {
+            updateTitle();
+            onMessageType( messageType, jids );
+        }
+    };
+    private boolean resumed = false;
+    
+    /**
+     * @param jids contacts concerned by the event, null when unknown
+     */
+    public void onMessageType( int messageType, Set<String> jids )
+    {
+        onMessageType( messageType );
+    }
+    
     protected int currentDialog = 0;
     public void onMessageType( int messageType )
     {
@@ -97,6 +127,8 @@ public abstract class TreeggerActivity extends Activity {
     {
         super.onResume();
         registerReceiver( receiver, new IntentFilter( TreeggerService.TREEGGER_BROADCAST_ACTION ) );
+        resumed = true;
+        if( treeggerService != null ) treeggerService.addListener( serviceListener );
         updateTitle();
     }
 
@@ -104,6 +136,8 @@ public abstract class TreeggerActivity extends Activity {
     public void onPause()
     {
         super.onPause();
+        resumed = false;
+        if( treeggerService != null ) treeggerService.removeListener( serviceListener );
         unregisterReceiver( receiver );
     }
 
@@ -162,28 +196,30 @@ public abstract class TreeggerActivity extends Activity {
     
     protected int getPresenceType( String jid )
     {
-        if( treeggerService != null )
+        if( treeggerService != null ) return getPresenceType( treeggerService.getPresence( jid ) );
+        return PRESENCE_TYPE_UNAVAILABLE;
+    }
+    
+    protected static int getPresenceType( Presence presence )
+    {
+        if ( presence != null )
         {
-            Presence presence = treeggerService.getPresence( jid );
-            if ( presence != null )
+            String presenceStatus = presence.getStatus();
+            if ( presenceStatus != null )
             {
-                String presenceStatus = presence.getStatus();
-                if ( presenceStatus != null )
+                String presenceShow = presence.getShow();
+                
+                if ( presenceShow.equalsIgnoreCase( "away" ) || presenceShow.equalsIgnoreCase( "xa" ) )
+                {
+                    return PRESENCE_TYPE_AWAY;
+                }
+                else if ( presenceShow.equalsIgnoreCase( "dnd" ) )
                 {
-                    String presenceShow = presence.getShow();
-                    
-                    if ( presenceShow.equalsIgnoreCase( "away" ) || presenceShow.equalsIgnoreCase( "xa" ) )
-                    {
-                        return PRESENCE_TYPE_AWAY;
-                    }
-                    else if ( presenceShow.equalsIgnoreCase( "dnd" ) )
-                    {
-                        return PRESENCE_TYPE_DND;
-                    }
-                    else
-                    {
-                        return PRESENCE_TYPE_AVAILABLE;
-                    }
+                    return PRESENCE_TYPE_DND;
+                }
+                else
+                {
+                    return PRESENCE_TYPE_AVAILABLE;
                 }
             }
         }
@@ -192,33 +228,54 @@ public abstract class TreeggerActivity extends Activity {
     
     
     
+    private SparseArray<Drawable.ConstantState> drawableStates = new SparseArray<Drawable.ConstantState>();
+    
+    /**
+     * Drawables of the list rows, whose resource is loaded once. Each call returns a new drawable
+     * sharing the loaded bitmap, since bounds and callback cannot be shared between views.
+     */
+    protected Drawable getCachedDrawable( int id )
+    {
+        Drawable.ConstantState drawableState = drawableStates.get( id );
+        if( drawableState == null )
+        {
+            Drawable drawable = getResources().getDrawable( id );
+            drawableState = drawable.getConstantState();
+            if( drawableState == null ) return drawable;
+            drawableStates.put( id, drawableState );
+            return drawable;
+        }
+        return drawableState.newDrawable();
+    }
+    
     protected void updatePresenceType( String jid, ImageView bullet )
     {
-        if( treeggerService != null )
+        if( treeggerService != null ) updatePresenceType( treeggerService.getContactState( jid ), bullet );
+    }
+    
+    protected void updatePresenceType( ContactState contactState, ImageView bullet )
+    {
+        if( contactState.composing )
         {
-            
-            if( treeggerService.isComposing( jid ) )
-            {
-                bullet.setImageDrawable( getResources().getDrawable(R.drawable.composing) );
-            }
-            else
+            bullet.setImageDrawable( getCachedDrawable( R.drawable.composing ) );
+        }
+        else
+        {
+            int presenceType = getPresenceType( contactState.presence );
+            switch ( presenceType )
             {
-                int presenceType = getPresenceType( jid );
-                switch ( presenceType )
-                {
-                    case PRESENCE_TYPE_AVAILABLE:
-                        bullet.setImageDrawable( getResources().getDrawable(R.drawable.bullet_green) );
-                        break;
-                    case PRESENCE_TYPE_AWAY:
-                        bullet.setImageDrawable( getResources().getDrawable(R.drawable.bullet_yellow) );
-                        break;
-                    case PRESENCE_TYPE_DND:
-                        bullet.setImageDrawable( getResources().getDrawable(R.drawable.bullet_red) );
-                        break;
-                    case PRESENCE_TYPE_UNAVAILABLE:
-                        bullet.setImageDrawable( getResources().getDrawable(R.drawable.bullet_grey) );
-                        break;
-                }
+                case PRESENCE_TYPE_AVAILABLE:
+                    bullet.setImageDrawable( getCachedDrawable( R.drawable.bullet_green ) );
+                    break;
+                case PRESENCE_TYPE_AWAY:
+                    bullet.setImageDrawable( getCachedDrawable( R.drawable.bullet_yellow ) );
+                    break;
+                case PRESENCE_TYPE_DND:
+                    bullet.setImageDrawable( getCachedDrawable( R.drawable.bullet_red ) );
+                    break;
+                case PRESENCE_TYPE_UNAVAILABLE:
+                    bullet.setImageDrawable( getCachedDrawable( R.drawable.bullet_grey ) );
+                    break;
             }
         }
     }
@@ -0,0 +1,301 @@
+package com.treegger.android.imonair.component;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Downloaded image files, bounded in total size. The least recently used files are deleted first.
+ * The order of use survives restarts through a journal, one line per operation:
+ * "W key size" when a file is written, "R key" when it is read and "D key" when it is deleted.
+ * The journal is rewritten with one line per file when most of its lines are stale.
+ */
+public class DiskImageCache
+{
+    public static final String TAG = "DiskImageCache";
+
+    public static final String FILE_PREFIX = "cache-";
+    private static final String JOURNAL_FILE = "image-journal";
+    private static final char WRITE = 'W';
+    private static final char READ = 'R';
+    private static final char DELETE = 'D';
+    private static final int MIN_COMPACTED_LINES = 200;
+
+    private final File directory;
+    private final long maxSize;
+    // file sizes by key, access ordered, least recently used first
+    private final LinkedHashMap<String,Long> entries = new LinkedHashMap<String, Long>( 16, 0.75f, true );
+    private long size = 0;
+
+    private Writer journal;
+    private int journalLines = 0;
+
+    private int hitCount = 0;
+    private int missCount = 0;
+    private int evictionCount = 0;
+
+    /**
+     * @param maxSize in bytes
+     */
+    public DiskImageCache( File directory, long maxSize )
+    {
+        this.directory = directory;
+        this.maxSize = maxSize;
+        open();
+    }
+
+    /**
+     * @return where the file of the key is, or is to be, written
+     */
+    public File getFile( String key )
+    {
+        return new File( directory, FILE_PREFIX + key );
+    }
+
+    /**
+     * @return the file of the key, null when it is not cached
+     */
+    public synchronized File get( String key )
+    {
+        if( entries.get( key ) == null )
+        {
+            missCount++;
+            return null;
+        }
+        hitCount++;
+        append( READ, key, null );
+        return getFile( key );
+    }
+
+    /**
+     * Records the file of the key once written, then deletes the least recently used files past the maximum size.
+     */
+    public synchronized void put( String key )
+    {
+        File file = getFile( key );
+        if( !file.exists() )
+        {
+            remove( key );
+            return;
+        }
+        long length = file.length();
+        Long previous = entries.put( key, length );
+        if( previous != null ) size -= previous;
+        size += length;
+        append( WRITE, key, length );
+        trim();
+    }
+
+    public synchronized void remove( String key )
+    {
+        Long previous = entries.remove( key );
+        if( previous != null )
+        {
+            size -= previous;
+            append( DELETE, key, null );
+        }
+        getFile( key ).delete();
+    }
+
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    public synchronized int getHitCount()
+    {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount()
+    {
+        return missCount;
+    }
+
+    public synchronized int getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    // ----------------------------------------------------------------------------
+    // ----------------------------------------------------------------------------
+    private void open()
+    {
+        File journalFile = new File( directory, JOURNAL_FILE );
+        if( journalFile.exists() )
+        {
+            try
+            {
+                readJournal( journalFile );
+            }
+            catch ( IOException e )
+            {
+                Log.w( TAG, e.getMessage(), e );
+                entries.clear();
+            }
+        }
+
+        // files cached before the journal existed, or whose write was not journaled, are the least recently used
+        LinkedHashMap<String,Long> journaled = new LinkedHashMap<String, Long>( entries );
+        entries.clear();
+        File[] files = directory.listFiles();
+        if( files != null )
+        {
+            Arrays.sort( files, new Comparator<File>()
+            {
+                public int compare( File file1, File file2 )
+                {
+                    long modified1 = file1.lastModified();
+                    long modified2 = file2.lastModified();
+                    return modified1 < modified2 ? -1 : ( modified1 == modified2 ? 0 : 1 );
+                }
+            } );
+            for( File file : files )
+            {
+                String name = file.getName();
+                if( !name.startsWith( FILE_PREFIX ) || name.endsWith( ".tmp" ) ) continue;
+                String key = name.substring( FILE_PREFIX.length() );
+                if( !journaled.containsKey( key ) ) entries.put( key, file.length() );
+            }
+        }
+        for( Map.Entry<String,Long> entry : journaled.entrySet() )
+        {
+            File file = getFile( entry.getKey() );
+            if( file.exists() ) entries.put( entry.getKey(), file.length() );
+        }
+
+        size = 0;
+        for( Long length : entries.values() ) size += length;
+        rewriteJournal();
+        trim();
+    }
+
+    private void readJournal( File journalFile ) throws IOException
+    {
+        BufferedReader reader = new BufferedReader( new FileReader( journalFile ) );
+        try
+        {
+            String line;
+            while( ( line = reader.readLine() ) != null )
+            {
+                String[] fields = line.split( " " );
+                if( fields.length < 2 ) continue;
+                String key = fields[ 1 ];
+                switch( line.charAt( 0 ) )
+                {
+                    case WRITE:
+                        if( fields.length == 3 ) entries.put( key, Long.parseLong( fields[ 2 ] ) );
+                        break;
+                    case READ:
+                        entries.get( key );
+                        break;
+                    case DELETE:
+                        entries.remove( key );
+                        break;
+                }
+            }
+        }
+        catch ( NumberFormatException e )
+        {
+            throw new IOException( "corrupted journal: " + e.getMessage() );
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    // one write line per file, least recently used first, so that reading it back restores the order
+    private void rewriteJournal()
+    {
+        closeJournal();
+        File journalFile = new File( directory, JOURNAL_FILE );
+        File tempFile = new File( directory, JOURNAL_FILE + ".tmp" );
+        try
+        {
+            Writer writer = new BufferedWriter( new FileWriter( tempFile ) );
+            try
+            {
+                for( Map.Entry<String,Long> entry : entries.entrySet() )
+                {
+                    writer.write( WRITE + " " + entry.getKey() + " " + entry.getValue() + "\n" );
+                }
+            }
+            finally
+            {
+                writer.close();
+            }
+            journalFile.delete();
+            if( !tempFile.renameTo( journalFile ) ) throw new IOException( "cannot rename " + tempFile );
+            journal = new BufferedWriter( new FileWriter( journalFile, true ) );
+            journalLines = entries.size();
+        }
+        catch ( IOException e )
+        {
+            // the cache still works, the order of use will only be lost at the next start
+            Log.w( TAG, e.getMessage(), e );
+        }
+    }
+
+    private void append( char operation, String key, Long length )
+    {
+        if( journal == null ) return;
+        try
+        {
+            journal.write( operation + " " + key + ( length != null ? " " + length : "" ) + "\n" );
+            journal.flush();
+            journalLines++;
+        }
+        catch ( IOException e )
+        {
+            Log.w( TAG, e.getMessage(), e );
+            closeJournal();
+            return;
+        }
+        if( journalLines > MIN_COMPACTED_LINES && journalLines > 2 * entries.size() ) rewriteJournal();
+    }
+
+    private void closeJournal()
+    {
+        if( journal == null ) return;
+        try
+        {
+            journal.close();
+        }
+        catch ( IOException e )
+        {
+            Log.w( TAG, e.getMessage(), e );
+        }
+        journal = null;
+    }
+
+    private void trim()
+    {
+        Iterator<Map.Entry<String,Long>> iterator = entries.entrySet().iterator();
+        while( size > maxSize && iterator.hasNext() )
+        {
+            Map.Entry<String,Long> entry = iterator.next();
+            iterator.remove();
+            size -= entry.getValue();
+            getFile( entry.getKey() ).delete();
+            evictionCount++;
+            append( DELETE, entry.getKey(), null );
+        }
+    }
+}
@@ -12,10 +12,7 @@ import java.math.BigInteger;
 import java.net.URL;
 import java.net.URLConnection;
 import java.security.MessageDigest;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -34,9 +31,16 @@ import android.widget.ImageView;
 public class ImageLoader
 {
 
+    // about a hundred 48x48 avatars
+    public static final int MEMORY_CACHE_SIZE = 1024 * 1024;
+    public static final long DISK_CACHE_SIZE = 4 * 1024 * 1024;
+
     private static Queue<ImageHandler> urlQueue = new ConcurrentLinkedQueue<ImageHandler>();
 
-    private static Map<String, Drawable> imageMap = Collections.synchronizedMap( new HashMap<String, Drawable>() );
+    private static MemoryImageCache memoryCache = new MemoryImageCache( MEMORY_CACHE_SIZE );
+
+    // opened by the loader thread, since it reads the cache directory
+    private static DiskImageCache diskCache;
 
     private static ThreadLoader currentLoader;
 
@@ -56,13 +60,34 @@ public class ImageLoader
         @Override
         public void handleMessage( Message message )
         {
-            image.setImageDrawable( (Drawable) message.obj );
+            // the view may have been recycled for another image in the meantime
+            if( url.equals( image.getTag() ) ) image.setImageDrawable( (Drawable) message.obj );
         }
     };
 
+    public static MemoryImageCache getMemoryCache()
+    {
+        return memoryCache;
+    }
+
+    /**
+     * @return null until an image has been fetched
+     */
+    public static synchronized DiskImageCache getDiskCache()
+    {
+        return diskCache;
+    }
+
+    private static synchronized DiskImageCache getDiskCache( Context context )
+    {
+        if( diskCache == null ) diskCache = new DiskImageCache( context.getCacheDir(), DISK_CACHE_SIZE );
+        return diskCache;
+    }
+
     public static void load( Context context, ImageView image, String url )
     {
-        Drawable drawable = imageMap.get( url );
+        image.setTag( url );
+        Drawable drawable = memoryCache.get( url );
         if ( drawable == null )
         {
             loadURL( new ImageHandler( image, url ) );
@@ -142,7 +167,7 @@ public class ImageLoader
             }
             try
             {
-                in.close();
+                out.close();
             }
             catch ( IOException e )
             {
@@ -165,26 +190,35 @@ public class ImageLoader
             tempFile.renameTo( file );
         }
 
-        private File getFile( ImageHandler handler )
+        // the name of the cache file, unchanged so that the files cached by previous versions are kept
+        private String getKey( ImageHandler handler )
         {
-            File file = null;
+            String key = null;
             try
             {
                 MessageDigest m = MessageDigest.getInstance( "MD5" );
                 m.update( handler.url.getBytes(), 0, handler.url.length() );
                 BigInteger i = new BigInteger( 1, m.digest() );
-                String filename = "cache-" + String.format( "%1$032X", i );
-                file = new File( handler.image.getContext().getCacheDir(), filename );
+                key = String.format( "%1$032X", i );
             }
             catch ( Exception e )
             {
             }
-            return file;
+            return key;
         }
         
-        private Drawable getDrawable( File file, int newWidth, int newHeight ) throws FileNotFoundException
+        private BitmapDrawable getDrawable( File file, int newWidth, int newHeight ) throws IOException
         {
-            Bitmap bitmap = BitmapFactory.decodeStream( new FileInputStream( file ) );
+            InputStream in = new FileInputStream( file );
+            Bitmap bitmap;
+            try
+            {
+                bitmap = BitmapFactory.decodeStream( in );
+            }
+            finally
+            {
+                in.close();
+            }
             int width = bitmap.getWidth();
             int height = bitmap.getHeight();
            
@@ -201,7 +235,8 @@ public class ImageLoader
 
         private void fetch( ImageHandler handler )
         {
-            Drawable drawable = imageMap.get( handler.url );
+            // the same image may have been queued by several views
+            Drawable drawable = memoryCache.peek( handler.url );
             if( drawable != null )
             {
                 Message message = handler.obtainMessage( 1, drawable );
@@ -209,36 +244,43 @@ public class ImageLoader
             }
             else
             {
-                File file = getFile( handler );
+                DiskImageCache diskCache = getDiskCache( handler.image.getContext() );
+                String key = getKey( handler );
+                if( key == null ) return;
                 try
                 {
-                    if ( file.exists() )
+                    File file = diskCache.get( key );
+                    if ( file != null )
                     {
                         backgroundQueue.add( handler );
                     }
                     else
                     {
+                        file = diskCache.getFile( key );
                         cacheURLToFile( handler.url, file );
+                        diskCache.put( key );
                     }
     
-                    drawable = getDrawable( file, 48, 48 );
-                    imageMap.put( handler.url, drawable );
+                    BitmapDrawable bitmapDrawable = getDrawable( file, 48, 48 );
+                    memoryCache.put( handler.url, bitmapDrawable );
     
-                    Message message = handler.obtainMessage( 1, drawable );
+                    Message message = handler.obtainMessage( 1, bitmapDrawable );
                     handler.sendMessage( message );
     
                 }
                 catch ( Exception e )
                 {
-                    file.delete();
-                    imageMap.remove( handler.url );
+                    diskCache.remove( key );
+                    memoryCache.remove( handler.url );
                 }
             }
         }
 
         private void backgroundFetch( ImageHandler handler )
         {
-            File file = getFile( handler );
+            DiskImageCache diskCache = getDiskCache( handler.image.getContext() );
+            String key = getKey( handler );
+            if( key == null ) return;
             try
             {
 
@@ -246,14 +288,15 @@ public class ImageLoader
                 WifiInfo info = wifi.getConnectionInfo();
                 if ( info != null && info.getIpAddress() != 0 )
                 {
-                    cacheURLToFile( handler.url, file );
-                    Drawable drawable = drawable = getDrawable( file, 48, 48 );
-                    imageMap.put( handler.url, drawable );
+                    cacheURLToFile( handler.url, diskCache.getFile( key ) );
+                    diskCache.put( key );
+                    BitmapDrawable drawable = getDrawable( diskCache.getFile( key ), 48, 48 );
+                    memoryCache.put( handler.url, drawable );
                 }
             }
             catch ( Exception e )
             {
-                file.delete();
+                diskCache.remove( key );
             }
         }
     }
@@ -0,0 +1,109 @@
+package com.treegger.android.imonair.component;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+
+/**
+ * Decoded images by URL, bounded by the bytes of their bitmaps.
+ * The least recently used images are dropped first when the bound is exceeded.
+ */
+public class MemoryImageCache
+{
+    private final int maxSize;
+    // access ordered, least recently used first
+    private final LinkedHashMap<String,BitmapDrawable> drawables = new LinkedHashMap<String, BitmapDrawable>( 16, 0.75f, true );
+    private int size = 0;
+
+    private int hitCount = 0;
+    private int missCount = 0;
+    private int evictionCount = 0;
+
+    /**
+     * @param maxSize in bitmap bytes
+     */
+    public MemoryImageCache( int maxSize )
+    {
+        this.maxSize = maxSize;
+    }
+
+    public synchronized BitmapDrawable get( String url )
+    {
+        BitmapDrawable drawable = drawables.get( url );
+        if( drawable != null ) hitCount++;
+        else missCount++;
+        return drawable;
+    }
+
+    /**
+     * Same as get, without counting a hit or a miss.
+     */
+    public synchronized BitmapDrawable peek( String url )
+    {
+        return drawables.get( url );
+    }
+
+    public synchronized void put( String url, BitmapDrawable drawable )
+    {
+        BitmapDrawable previous = drawables.put( url, drawable );
+        if( previous != null ) size -= sizeOf( previous );
+        size += sizeOf( drawable );
+        trim();
+    }
+
+    public synchronized void remove( String url )
+    {
+        BitmapDrawable previous = drawables.remove( url );
+        if( previous != null ) size -= sizeOf( previous );
+    }
+
+    public synchronized int getSize()
+    {
+        return size;
+    }
+
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    public synchronized int getHitCount()
+    {
+        return hitCount;
+    }
+
+    public synchronized int getMissCount()
+    {
+        return missCount;
+    }
+
+    public synchronized int getEvictionCount()
+    {
+        return evictionCount;
+    }
+
+    // ----------------------------------------------------------------------------
+    // ----------------------------------------------------------------------------
+    // the dropped bitmaps are not recycled, a view may still show them
+    private void trim()
+    {
+        Iterator<Map.Entry<String,BitmapDrawable>> iterator = drawables.entrySet().iterator();
+        while( size > maxSize && iterator.hasNext() )
+        {
+            BitmapDrawable drawable = iterator.next().getValue();
+            iterator.remove();
+            size -= sizeOf( drawable );
+            evictionCount++;
+        }
+    }
+
+    private static int sizeOf( BitmapDrawable drawable )
+    {
+        Bitmap bitmap = drawable.getBitmap();
+        if( bitmap == null ) return 0;
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+}
@@ -0,0 +1,216 @@
+package com.treegger.android.imonair.component;
+
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.treegger.protobuf.WebSocketProto.RosterItem;
+
+/**
+ * Roster kept sorted by presence rank then name. The sort key of each contact is computed
+ * when it changes, and a changed contact is moved to its new position by binary search
+ * instead of sorting the whole roster again. Finding the position is O(log n), moving the
+ * contact in the backing array is an O(n) copy of references, cheap next to a sort with
+ * collation but not logarithmic. Whole roster loads and rank updates sort once instead.
+ * Not thread safe, meant to be used from the main thread.
+ */
+public class SortedRoster
+{
+    public static class Contact
+    {
+        public final String jid;
+        private RosterItem rosterItem;
+        private int rank;
+        private CollationKey nameKey;
+        private int version = 0;
+
+        private Contact( String jid )
+        {
+            this.jid = jid;
+        }
+
+        public RosterItem getRosterItem()
+        {
+            return rosterItem;
+        }
+
+        public int getRank()
+        {
+            return rank;
+        }
+
+        /**
+         * Incremented on every change of the contact, so that its views know when to be refreshed.
+         */
+        public int getVersion()
+        {
+            return version;
+        }
+    }
+
+    public interface Ranker
+    {
+        int rankOf( RosterItem rosterItem );
+    }
+
+    private static final Comparator<Contact> COMPARATOR = new Comparator<Contact>()
+    {
+        public int compare( Contact contact1, Contact contact2 )
+        {
+            int rankDelta = contact1.rank - contact2.rank;
+            if( rankDelta != 0 ) return rankDelta;
+            int nameDelta = contact1.nameKey.compareTo( contact2.nameKey );
+            if( nameDelta != 0 ) return nameDelta;
+            return contact1.jid.compareTo( contact2.jid );
+        }
+    };
+
+    private final Collator collator;
+
+    private List<Contact> contacts = new ArrayList<Contact>();
+    private Map<String,Contact> contactsByJid = new HashMap<String, Contact>();
+
+    public SortedRoster()
+    {
+        collator = Collator.getInstance();
+        collator.setStrength( Collator.SECONDARY );
+    }
+
+    public int size()
+    {
+        return contacts.size();
+    }
+
+    public Contact get( int position )
+    {
+        return contacts.get( position );
+    }
+
+    public Contact get( String jid )
+    {
+        return contactsByJid.get( jid );
+    }
+
+    /**
+     * Replaces the contacts by the given ones, sorted once.
+     */
+    public void load( List<RosterItem> rosterItems, Ranker ranker )
+    {
+        clear();
+        for( RosterItem rosterItem : rosterItems )
+        {
+            Contact contact = contactsByJid.get( rosterItem.getJid() );
+            if( contact == null )
+            {
+                contact = new Contact( rosterItem.getJid() );
+                contactsByJid.put( contact.jid, contact );
+                contacts.add( contact );
+            }
+            contact.rosterItem = rosterItem;
+            contact.rank = ranker.rankOf( rosterItem );
+            contact.nameKey = collator.getCollationKey( rosterItem.getName() );
+        }
+        Collections.sort( contacts, COMPARATOR );
+    }
+
+    /**
+     * Computes the rank of every contact again, then sorts once if any changed.
+     */
+    public void rerank( Ranker ranker )
+    {
+        boolean changed = false;
+        for( Contact contact : contacts )
+        {
+            int rank = ranker.rankOf( contact.rosterItem );
+            if( rank != contact.rank )
+            {
+                contact.rank = rank;
+                contact.version++;
+                changed = true;
+            }
+        }
+        if( changed ) Collections.sort( contacts, COMPARATOR );
+    }
+
+    /**
+     * Adds the contact, or updates it and moves it to its new position.
+     */
+    public void put( RosterItem rosterItem, int rank )
+    {
+        Contact contact = contactsByJid.get( rosterItem.getJid() );
+        if( contact == null )
+        {
+            contact = new Contact( rosterItem.getJid() );
+            contactsByJid.put( contact.jid, contact );
+        }
+        else
+        {
+            detach( contact );
+        }
+        contact.rosterItem = rosterItem;
+        contact.rank = rank;
+        contact.nameKey = collator.getCollationKey( rosterItem.getName() );
+        contact.version++;
+        attach( contact );
+    }
+
+    /**
+     * Moves the contact to the position of its new rank.
+     */
+    public void setRank( String jid, int rank )
+    {
+        Contact contact = contactsByJid.get( jid );
+        if( contact != null && contact.rank != rank )
+        {
+            detach( contact );
+            contact.rank = rank;
+            contact.version++;
+            attach( contact );
+        }
+    }
+
+    /**
+     * Marks the contact as changed without moving it, when something not part of the sort key changed.
+     */
+    public void touch( String jid )
+    {
+        Contact contact = contactsByJid.get( jid );
+        if( contact != null ) contact.version++;
+    }
+
+    public void touchAll()
+    {
+        for( Contact contact : contacts ) contact.version++;
+    }
+
+    public void remove( String jid )
+    {
+        Contact contact = contactsByJid.remove( jid );
+        if( contact != null ) detach( contact );
+    }
+
+    public void clear()
+    {
+        contacts.clear();
+        contactsByJid.clear();
+    }
+
+    // ----------------------------------------------------------------------------
+    // ----------------------------------------------------------------------------
+    private void detach( Contact contact )
+    {
+        int position = Collections.binarySearch( contacts, contact, COMPARATOR );
+        if( position >= 0 ) contacts.remove( position );
+    }
+
+    private void attach( Contact contact )
+    {
+        int position = Collections.binarySearch( contacts, contact, COMPARATOR );
+        if( position < 0 ) contacts.add( -position - 1, contact );
+    }
+}
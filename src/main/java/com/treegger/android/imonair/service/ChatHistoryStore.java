@@ -0,0 +1,324 @@
+package com.treegger.android.imonair.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Append only message log of every conversation, kept on disk.
+ * Each conversation has a log file of checksummed records and an index file holding the
+ * offset of every record, so that a page of messages is read without scanning the log.
+ * A record is written to the log before its offset is added to the index, and a torn
+ * record left by a crash is dropped when the conversation is opened.
+ */
+public class ChatHistoryStore
+{
+    public static final String TAG = "ChatHistoryStore";
+
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final int OFFSET_SIZE = 8;
+    // record length and checksum around the payload
+    private static final int RECORD_OVERHEAD = 8;
+    // two file descriptors per open conversation
+    private static final int MAX_OPEN_CONVERSATIONS = 8;
+
+    private final File directory;
+
+    // least recently used conversations are closed, they are reopened on demand
+    private Map<String,Conversation> conversations = new LinkedHashMap<String, Conversation>( 16, 0.75f, true )
+    {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<String,Conversation> eldest )
+        {
+            if( size() <= MAX_OPEN_CONVERSATIONS ) return false;
+            closeConversation( eldest.getValue() );
+            return true;
+        }
+    };
+
+    private static class Conversation
+    {
+        private RandomAccessFile log;
+        private RandomAccessFile index;
+        private long messageCount;
+    }
+
+    public ChatHistoryStore( File directory )
+    {
+        this.directory = directory;
+        directory.mkdirs();
+    }
+
+    /**
+     * @return the sequence number of the message in its conversation
+     */
+    public synchronized long append( String userAndHost, ChatMessage message ) throws IOException
+    {
+        Conversation conversation = getConversation( userAndHost, true );
+
+        byte[] record = encode( message );
+        long offset = conversation.log.length();
+        conversation.log.seek( offset );
+        conversation.log.write( record );
+
+        conversation.index.seek( conversation.messageCount * OFFSET_SIZE );
+        conversation.index.writeLong( offset );
+
+        message.seq = conversation.messageCount;
+        return conversation.messageCount++;
+    }
+
+    public synchronized long getMessageCount( String userAndHost ) throws IOException
+    {
+        Conversation conversation = getConversation( userAndHost, false );
+        return conversation == null ? 0 : conversation.messageCount;
+    }
+
+    /**
+     * Reads backward: the messages whose sequence number is in [before-count, before), oldest first.
+     */
+    public synchronized List<ChatMessage> readPage( String userAndHost, long before, int count ) throws IOException
+    {
+        Conversation conversation = getConversation( userAndHost, false );
+        if( conversation == null ) return new ArrayList<ChatMessage>( 0 );
+        long to = Math.min( before, conversation.messageCount );
+        long from = Math.max( 0, to - count );
+        List<ChatMessage> messages = new ArrayList<ChatMessage>( (int)( to - from ) );
+        if( from >= to ) return messages;
+
+        // records are contiguous: one read of the offsets, one read of the records
+        byte[] offsetBytes = new byte[ (int)( to - from ) * OFFSET_SIZE ];
+        conversation.index.seek( from * OFFSET_SIZE );
+        conversation.index.readFully( offsetBytes );
+        DataInputStream offsets = new DataInputStream( new ByteArrayInputStream( offsetBytes ) );
+
+        long start = offsets.readLong();
+        long end = conversation.log.length();
+        if( to < conversation.messageCount )
+        {
+            conversation.index.seek( to * OFFSET_SIZE );
+            end = conversation.index.readLong();
+        }
+        byte[] recordBytes = new byte[ (int)( end - start ) ];
+        conversation.log.seek( start );
+        conversation.log.readFully( recordBytes );
+
+        DataInputStream records = new DataInputStream( new ByteArrayInputStream( recordBytes ) );
+        for( long seq = from; seq < to; seq++ )
+        {
+            ChatMessage message = decode( records );
+            if( message == null ) throw new IOException( "Corrupted record " + seq + " for " + userAndHost );
+            message.seq = seq;
+            messages.add( message );
+        }
+        return messages;
+    }
+
+    /**
+     * Removes the history of a conversation.
+     */
+    public synchronized void delete( String userAndHost ) throws IOException
+    {
+        String key = userAndHost.toLowerCase();
+        Conversation conversation = conversations.remove( key );
+        if( conversation != null ) closeConversation( conversation );
+        String filename = getFileName( key );
+        new File( directory, filename + LOG_SUFFIX ).delete();
+        new File( directory, filename + INDEX_SUFFIX ).delete();
+    }
+
+    /**
+     * Removes the history of every conversation.
+     */
+    public synchronized void deleteAll()
+    {
+        close();
+        File[] files = directory.listFiles();
+        if( files == null ) return;
+        for( File file : files )
+        {
+            if( file.getName().startsWith( "history-" ) ) file.delete();
+        }
+    }
+
+    /**
+     * Closes the open files, the store can still be used afterward.
+     */
+    public synchronized void close()
+    {
+        for( Conversation conversation : conversations.values() )
+        {
+            closeConversation( conversation );
+        }
+        conversations.clear();
+    }
+
+    // ----------------------------------------------------------------------------
+    // ----------------------------------------------------------------------------
+    /**
+     * @param create false to return null instead of creating the files of a conversation without history
+     */
+    private Conversation getConversation( String userAndHost, boolean create ) throws IOException
+    {
+        String key = userAndHost.toLowerCase();
+        Conversation conversation = conversations.get( key );
+        if( conversation == null )
+        {
+            String filename = getFileName( key );
+            if( !create && !new File( directory, filename + LOG_SUFFIX ).exists() ) return null;
+            conversation = open( filename );
+            conversations.put( key, conversation );
+        }
+        return conversation;
+    }
+
+    private void closeConversation( Conversation conversation )
+    {
+        try
+        {
+            conversation.log.close();
+            conversation.index.close();
+        }
+        catch ( IOException e )
+        {
+            Log.w( TAG, e.getMessage(), e );
+        }
+    }
+
+    private Conversation open( String filename ) throws IOException
+    {
+        Conversation conversation = new Conversation();
+        conversation.log = new RandomAccessFile( new File( directory, filename + LOG_SUFFIX ), "rw" );
+        try
+        {
+            conversation.index = new RandomAccessFile( new File( directory, filename + INDEX_SUFFIX ), "rw" );
+        }
+        catch ( IOException e )
+        {
+            conversation.log.close();
+            throw e;
+        }
+
+        // recovery: drop the last indexed records until one is complete, then anything written after it
+        long messageCount = conversation.index.length() / OFFSET_SIZE;
+        long logLength = 0;
+        while( messageCount > 0 )
+        {
+            conversation.index.seek( ( messageCount - 1 ) * OFFSET_SIZE );
+            long offset = conversation.index.readLong();
+            long recordEnd = checkRecord( conversation.log, offset );
+            if( recordEnd > 0 )
+            {
+                logLength = recordEnd;
+                break;
+            }
+            messageCount--;
+        }
+        if( conversation.index.length() != messageCount * OFFSET_SIZE ) conversation.index.setLength( messageCount * OFFSET_SIZE );
+        if( conversation.log.length() != logLength ) conversation.log.setLength( logLength );
+        conversation.messageCount = messageCount;
+        return conversation;
+    }
+
+    /**
+     * @return the end offset of the record, -1 if it is incomplete or corrupted
+     */
+    private long checkRecord( RandomAccessFile log, long offset ) throws IOException
+    {
+        if( offset < 0 || offset + RECORD_OVERHEAD > log.length() ) return -1;
+        log.seek( offset );
+        int length = log.readInt();
+        if( length < 0 || offset + RECORD_OVERHEAD + length > log.length() ) return -1;
+        byte[] payload = new byte[ length ];
+        log.readFully( payload );
+        int checksum = log.readInt();
+        if( checksum != checksum( payload ) ) return -1;
+        return offset + RECORD_OVERHEAD + length;
+    }
+
+    private static byte[] encode( ChatMessage message ) throws IOException
+    {
+        ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream( 64 + message.text.length() * 2 );
+        DataOutputStream payload = new DataOutputStream( payloadBytes );
+        payload.writeLong( message.date.getTime() );
+        writeString( payload, message.userAndHost );
+        writeString( payload, message.text );
+        byte[] payloadArray = payloadBytes.toByteArray();
+
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream( payloadArray.length + RECORD_OVERHEAD );
+        DataOutputStream record = new DataOutputStream( recordBytes );
+        record.writeInt( payloadArray.length );
+        record.write( payloadArray );
+        record.writeInt( checksum( payloadArray ) );
+        return recordBytes.toByteArray();
+    }
+
+    private static ChatMessage decode( DataInputStream records ) throws IOException
+    {
+        int length = records.readInt();
+        byte[] payloadArray = new byte[ length ];
+        records.readFully( payloadArray );
+        if( records.readInt() != checksum( payloadArray ) ) return null;
+
+        DataInputStream payload = new DataInputStream( new ByteArrayInputStream( payloadArray ) );
+        Date date = new Date( payload.readLong() );
+        String userAndHost = readString( payload );
+        String text = readString( payload );
+        return new ChatMessage( userAndHost, text, date );
+    }
+
+    // writeUTF is limited to 64KB
+    private static void writeString( DataOutputStream out, String s ) throws IOException
+    {
+        byte[] bytes = s.getBytes( "UTF-8" );
+        out.writeInt( bytes.length );
+        out.write( bytes );
+    }
+
+    private static String readString( DataInputStream in ) throws IOException
+    {
+        byte[] bytes = new byte[ in.readInt() ];
+        in.readFully( bytes );
+        return new String( bytes, "UTF-8" );
+    }
+
+    private static int checksum( byte[] bytes )
+    {
+        CRC32 crc = new CRC32();
+        crc.update( bytes );
+        return (int) crc.getValue();
+    }
+
+    private static String getFileName( String userAndHost ) throws IOException
+    {
+        try
+        {
+            MessageDigest m = MessageDigest.getInstance( "MD5" );
+            byte[] bytes = userAndHost.getBytes( "UTF-8" );
+            m.update( bytes, 0, bytes.length );
+            BigInteger i = new BigInteger( 1, m.digest() );
+            return "history-" + String.format( "%1$032X", i );
+        }
+        catch ( Exception e )
+        {
+            throw new IOException( e.getMessage() );
+        }
+    }
+}
@@ -5,13 +5,19 @@ import java.util.Date;
 public class ChatMessage
 {
     public ChatMessage( String userAndHost, String text )
+    {
+        this( userAndHost, text, new Date() );
+    }
+    public ChatMessage( String userAndHost, String text, Date date )
     {
         this.userAndHost = userAndHost;
         this.text = text;
-        this.date = new Date();
+        this.date = date;
     }
     
     public Date date;
     public String userAndHost;
     public String text;
+    /** position in the conversation history, -1 when not stored */
+    public long seq = -1;
 }
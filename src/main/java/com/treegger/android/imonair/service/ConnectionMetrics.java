@@ -0,0 +1,35 @@
+package com.treegger.android.imonair.service;
+
+/**
+ * Health of the connection of an account when the metrics were taken.
+ */
+public class ConnectionMetrics
+{
+    public final int state;
+    /** round trip times in milliseconds, -1 when no pong has been received */
+    public final long rttMedian;
+    public final long rtt90;
+    public final long rtt99;
+    public final long pongCount;
+    /** pings without pong in a row, the connection is dropped past MAX_MISSED_PONGS */
+    public final int missedPongs;
+    public final long keepAliveInterval;
+    public final long fastPathReconnects;
+    public final long slowPathReconnects;
+    public final int outboundQueueDepth;
+
+    public ConnectionMetrics( int state, LatencyStats latency, int missedPongs, long keepAliveInterval,
+                              long fastPathReconnects, long slowPathReconnects, int outboundQueueDepth )
+    {
+        this.state = state;
+        this.rttMedian = latency.getPercentile( 50 );
+        this.rtt90 = latency.getPercentile( 90 );
+        this.rtt99 = latency.getPercentile( 99 );
+        this.pongCount = latency.getTotalCount();
+        this.missedPongs = missedPongs;
+        this.keepAliveInterval = keepAliveInterval;
+        this.fastPathReconnects = fastPathReconnects;
+        this.slowPathReconnects = slowPathReconnects;
+        this.outboundQueueDepth = outboundQueueDepth;
+    }
+}
@@ -0,0 +1,219 @@
+package com.treegger.android.imonair.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * States of a connection and the transitions between them, without locks.
+ * A transition moves to the next state with a compare and set, then queues its side effect on an executor
+ * running one task at a time. Each compare and set numbers the transition, and the side effects are
+ * performed in that order even when the threads which applied them queue them in another one.
+ */
+public class ConnectionStateMachine
+{
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+    public static final int STATE_PAUSED = 3;
+    public static final int STATE_DISCONNECTING = 4;
+    public static final int STATE_PAUSING = 5;
+    public static final int STATE_SIGNINGDOUT = 6;
+
+    static final int STATE_COUNT = 7;
+
+    public static final int TRANSITION_CONNECT = 0;
+    public static final int TRANSITION_CONNECTED = 1;
+    public static final int TRANSITION_PAUSE = 2;
+    public static final int TRANSITION_PAUSED = 3;
+    public static final int TRANSITION_RECONNECT = 4;
+    public static final int TRANSITION_DISCONNECT = 5;
+    public static final int TRANSITION_DISCONNECTED = 6;
+    public static final int TRANSITION_RESUME = 7;
+    public static final int TRANSITION_SIGNOUT = 8;
+    // sign out of a paused connection already resumed once to sign out
+    public static final int TRANSITION_SIGNOUT_NOW = 9;
+    // the connection dropped or could not be opened, a reconnection is scheduled
+    public static final int TRANSITION_CONNECTION_LOST = 10;
+
+    static final int TRANSITION_COUNT = 11;
+
+    public static final int ACTION_CONNECT = 1;
+    public static final int ACTION_CONNECTED = 2;
+    public static final int ACTION_PAUSE = 3;
+    public static final int ACTION_PAUSED = 4;
+    public static final int ACTION_RECONNECT = 5;
+    public static final int ACTION_RESTART_CONNECTING = 6;
+    public static final int ACTION_RESUME = 7;
+    public static final int ACTION_DISCONNECT = 8;
+    public static final int ACTION_ABORT_CONNECTING = 9;
+    public static final int ACTION_DISCONNECTED = 10;
+    public static final int ACTION_SIGNOUT = 11;
+    public static final int ACTION_RESUME_TO_SIGNOUT = 12;
+    public static final int ACTION_CONNECTION_LOST = 13;
+
+    public interface ActionHandler
+    {
+        /**
+         * Side effect of a transition from one state to another, called on the executor.
+         */
+        void perform( int action, int from, int to );
+    }
+
+    private static class Transition
+    {
+        private final int to;
+        private final int action;
+
+        private Transition( int to, int action )
+        {
+            this.to = to;
+            this.action = action;
+        }
+    }
+
+    private static class Step
+    {
+        private final int action;
+        private final int from;
+        private final int to;
+
+        private Step( int action, int from, int to )
+        {
+            this.action = action;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    // by transition and current state, null when the transition does not apply
+    private static final Transition[][] TRANSITIONS = new Transition[ TRANSITION_COUNT ][ STATE_COUNT ];
+
+    private static void on( int transition, int[] from, int to, int action )
+    {
+        for( int state : from ) TRANSITIONS[ transition ][ state ] = new Transition( to, action );
+    }
+
+    private static int[] states( int... states )
+    {
+        return states;
+    }
+
+    static
+    {
+        on( TRANSITION_CONNECT, states( STATE_DISCONNECTED, STATE_DISCONNECTING, STATE_PAUSED, STATE_PAUSING ), STATE_CONNECTING, ACTION_CONNECT );
+        on( TRANSITION_CONNECTED, states( STATE_CONNECTING ), STATE_CONNECTED, ACTION_CONNECTED );
+        on( TRANSITION_PAUSE, states( STATE_CONNECTED ), STATE_PAUSING, ACTION_PAUSE );
+        on( TRANSITION_PAUSED, states( STATE_PAUSING ), STATE_PAUSED, ACTION_PAUSED );
+        on( TRANSITION_RECONNECT, states( STATE_DISCONNECTED ), STATE_CONNECTING, ACTION_CONNECT );
+        on( TRANSITION_RECONNECT, states( STATE_CONNECTING ), STATE_CONNECTING, ACTION_RESTART_CONNECTING );
+        on( TRANSITION_RECONNECT, states( STATE_CONNECTED ), STATE_CONNECTING, ACTION_RECONNECT );
+        on( TRANSITION_RECONNECT, states( STATE_PAUSED, STATE_PAUSING ), STATE_CONNECTING, ACTION_RESUME );
+        on( TRANSITION_DISCONNECT, states( STATE_CONNECTING ), STATE_DISCONNECTING, ACTION_ABORT_CONNECTING );
+        on( TRANSITION_DISCONNECT, states( STATE_PAUSED, STATE_CONNECTED ), STATE_DISCONNECTING, ACTION_DISCONNECT );
+        on( TRANSITION_DISCONNECTED, states( STATE_DISCONNECTING ), STATE_DISCONNECTED, ACTION_DISCONNECTED );
+        on( TRANSITION_RESUME, states( STATE_PAUSED ), STATE_CONNECTING, ACTION_RESUME );
+        on( TRANSITION_CONNECTION_LOST, states( STATE_CONNECTING, STATE_CONNECTED ), STATE_DISCONNECTED, ACTION_CONNECTION_LOST );
+        on( TRANSITION_SIGNOUT_NOW, states( STATE_DISCONNECTED, STATE_CONNECTING, STATE_CONNECTED, STATE_PAUSED,
+                                            STATE_DISCONNECTING, STATE_PAUSING, STATE_SIGNINGDOUT ), STATE_SIGNINGDOUT, ACTION_SIGNOUT );
+        on( TRANSITION_SIGNOUT, states( STATE_DISCONNECTED, STATE_CONNECTING, STATE_CONNECTED,
+                                        STATE_DISCONNECTING, STATE_SIGNINGDOUT ), STATE_SIGNINGDOUT, ACTION_SIGNOUT );
+        // a paused connection is resumed to send the unavailable presence
+        on( TRANSITION_SIGNOUT, states( STATE_PAUSED, STATE_PAUSING ), STATE_CONNECTING, ACTION_RESUME_TO_SIGNOUT );
+    }
+
+    // state in the low byte, number of transitions applied above it
+    private final AtomicLong stateAndCount = new AtomicLong( STATE_DISCONNECTED );
+    // side effects queued but not performed yet, by transition number
+    private final ConcurrentHashMap<Long,Step> steps = new ConcurrentHashMap<Long, Step>();
+    // number of the next side effect to perform, only used on the executor
+    private long nextStep = 1;
+
+    private final Executor executor;
+    private final ActionHandler actionHandler;
+
+    private final Runnable performStepsTask = new Runnable()
+    {
+        public void run()
+        {
+            performSteps();
+        }
+    };
+
+    /**
+     * @param executor runs one task at a time, in submission order
+     */
+    public ConnectionStateMachine( Executor executor, ActionHandler actionHandler )
+    {
+        this.executor = executor;
+        this.actionHandler = actionHandler;
+    }
+
+    public int getState()
+    {
+        return (int)( stateAndCount.get() & 0xFF );
+    }
+
+    /**
+     * Moves to the next state with a compare and set, then queues the side effect of the transition.
+     * Never blocks.
+     * @return false when the transition does not apply to the current state
+     */
+    public boolean apply( int transition )
+    {
+        while( true )
+        {
+            long current = stateAndCount.get();
+            int from = (int)( current & 0xFF );
+            Transition next = TRANSITIONS[ transition ][ from ];
+            if( next == null ) return false;
+            long count = ( current >>> 8 ) + 1;
+            if( stateAndCount.compareAndSet( current, ( count << 8 ) | next.to ) )
+            {
+                steps.put( count, new Step( next.action, from, next.to ) );
+                executor.execute( performStepsTask );
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the state reached by the transition, -1 when it does not apply
+     */
+    public static int getTarget( int transition, int from )
+    {
+        Transition next = TRANSITIONS[ transition ][ from ];
+        return next == null ? -1 : next.to;
+    }
+
+    /**
+     * @return the side effect of the transition, 0 when it does not apply
+     */
+    public static int getAction( int transition, int from )
+    {
+        Transition next = TRANSITIONS[ transition ][ from ];
+        return next == null ? 0 : next.action;
+    }
+
+    // ----------------------------------------------------------------------------
+    // ----------------------------------------------------------------------------
+    // a step whose thread has not queued it yet is performed by the task that thread queues afterwards
+    private void performSteps()
+    {
+        Step step;
+        while( ( step = steps.remove( nextStep ) ) != null )
+        {
+            nextStep++;
+            try
+            {
+                actionHandler.perform( step.action, step.from, step.to );
+            }
+            catch ( RuntimeException e )
+            {
+                // the following steps still run, the executor reports the failure
+                executor.execute( performStepsTask );
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.treegger.android.imonair.service;
+
+import com.treegger.protobuf.WebSocketProto.Presence;
+import com.treegger.protobuf.WebSocketProto.RosterItem;
+import com.treegger.protobuf.WebSocketProto.VCardResponse;
+
+/**
+ * Everything a roster row shows about a contact. A state is never modified: an update
+ * publishes a new state, so a reader always sees the fields of a single update.
+ */
+public class ContactState
+{
+    public static final ContactState EMPTY = new ContactState( null, null, false, 0, null, null );
+
+    /** null when the contact is not in the roster */
+    public final RosterItem rosterItem;
+    /** the presence of the best resource, null when the contact is unavailable */
+    public final Presence presence;
+    public final boolean composing;
+    /** messages received since the conversation was last read */
+    public final int unreadCount;
+    public final VCardResponse vcard;
+    public final ChatMessage lastMessage;
+
+    private ContactState( RosterItem rosterItem, Presence presence, boolean composing, int unreadCount,
+                          VCardResponse vcard, ChatMessage lastMessage )
+    {
+        this.rosterItem = rosterItem;
+        this.presence = presence;
+        this.composing = composing;
+        this.unreadCount = unreadCount;
+        this.vcard = vcard;
+        this.lastMessage = lastMessage;
+    }
+
+    public boolean hasUnreadMessages()
+    {
+        return unreadCount > 0;
+    }
+
+    public ContactState withRosterItem( RosterItem rosterItem )
+    {
+        return new ContactState( rosterItem, presence, composing, unreadCount, vcard, lastMessage );
+    }
+
+    // a new presence ends the composing notification
+    public ContactState withPresence( Presence presence )
+    {
+        return new ContactState( rosterItem, presence, false, unreadCount, vcard, lastMessage );
+    }
+
+    public ContactState withComposing( boolean composing )
+    {
+        if( composing == this.composing ) return this;
+        return new ContactState( rosterItem, presence, composing, unreadCount, vcard, lastMessage );
+    }
+
+    public ContactState withVCard( VCardResponse vcard )
+    {
+        return new ContactState( rosterItem, presence, composing, unreadCount, vcard, lastMessage );
+    }
+
+    /**
+     * A message received ends the composing notification and is unread.
+     */
+    public ContactState withMessage( ChatMessage message, boolean received )
+    {
+        if( received ) return new ContactState( rosterItem, presence, false, unreadCount + 1, vcard, message );
+        return new ContactState( rosterItem, presence, composing, unreadCount, vcard, message );
+    }
+
+    public ContactState withMessagesRead()
+    {
+        if( unreadCount == 0 ) return this;
+        return new ContactState( rosterItem, presence, composing, 0, vcard, lastMessage );
+    }
+}
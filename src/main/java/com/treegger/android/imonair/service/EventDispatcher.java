@@ -0,0 +1,162 @@
+package com.treegger.android.imonair.service;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+
+/**
+ * Delivers service events to the UI on the main thread.
+ * Events about contacts are merged by type during a coalescing window and delivered
+ * once with the set of changed JIDs. Events go to the in-process listeners when there
+ * are some, to a system broadcast otherwise.
+ */
+public class EventDispatcher
+{
+    public static final long DEFAULT_COALESCING_WINDOW = 100;
+    // past that many JIDs, a broadcast asks for a full refresh instead of carrying them, to stay far below the binder transaction limit
+    public static final int MAX_BROADCAST_JIDS = 500;
+
+    public interface Listener
+    {
+        /**
+         * @param jids the contacts concerned by the event, null when unknown or when all may be
+         */
+        void onServiceEvent( int messageType, Set<String> jids );
+    }
+
+    private static class PendingEvent
+    {
+        private Set<String> jids = new HashSet<String>();
+        private boolean all = false;
+    }
+
+    private final Context context;
+    private final Handler handler;
+    private long coalescingWindow = DEFAULT_COALESCING_WINDOW;
+
+    private List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    private Map<Integer,PendingEvent> pendingEvents = new LinkedHashMap<Integer, PendingEvent>();
+    private boolean flushScheduled = false;
+
+    private final Runnable flushTask = new Runnable()
+    {
+        public void run()
+        {
+            flush();
+        }
+    };
+
+    public EventDispatcher( Context context, Handler handler )
+    {
+        this.context = context;
+        this.handler = handler;
+    }
+
+    public void setCoalescingWindow( long coalescingWindow )
+    {
+        this.coalescingWindow = coalescingWindow;
+    }
+
+    public void addListener( Listener listener )
+    {
+        if( !listeners.contains( listener ) ) listeners.add( listener );
+    }
+
+    public void removeListener( Listener listener )
+    {
+        listeners.remove( listener );
+    }
+
+    /**
+     * Delivers the event as soon as possible, without merging it.
+     */
+    public void dispatch( final int messageType )
+    {
+        handler.post( new Runnable()
+        {
+            public void run()
+            {
+                deliver( messageType, null );
+            }
+        } );
+    }
+
+    /**
+     * Delivers the event at the end of the coalescing window, along with the other events of the same type.
+     * @param jid the concerned contact, null for all
+     */
+    public void post( int messageType, String jid )
+    {
+        post( messageType, jid == null ? null : Collections.singleton( jid ) );
+    }
+
+    public synchronized void post( int messageType, Set<String> jids )
+    {
+        PendingEvent pendingEvent = pendingEvents.get( messageType );
+        if( pendingEvent == null )
+        {
+            pendingEvent = new PendingEvent();
+            pendingEvents.put( messageType, pendingEvent );
+        }
+        if( jids == null ) pendingEvent.all = true;
+        else if( !pendingEvent.all ) pendingEvent.jids.addAll( jids );
+
+        if( !flushScheduled )
+        {
+            flushScheduled = true;
+            handler.postDelayed( flushTask, coalescingWindow );
+        }
+    }
+
+    public synchronized void clear()
+    {
+        pendingEvents.clear();
+        handler.removeCallbacks( flushTask );
+        flushScheduled = false;
+    }
+
+    // ----------------------------------------------------------------------------
+    // ----------------------------------------------------------------------------
+    private void flush()
+    {
+        Map<Integer,PendingEvent> events;
+        synchronized( this )
+        {
+            events = pendingEvents;
+            pendingEvents = new LinkedHashMap<Integer, PendingEvent>();
+            flushScheduled = false;
+        }
+        for( Map.Entry<Integer,PendingEvent> entry : events.entrySet() )
+        {
+            PendingEvent pendingEvent = entry.getValue();
+            deliver( entry.getKey(), pendingEvent.all ? null : pendingEvent.jids );
+        }
+    }
+
+    private void deliver( int messageType, Set<String> jids )
+    {
+        if( listeners.isEmpty() )
+        {
+            Intent broadCastIntent = new Intent( TreeggerService.TREEGGER_BROADCAST_ACTION );
+            broadCastIntent.putExtra( TreeggerService.EXTRA_MESSAGE_TYPE, messageType );
+            if( jids != null && jids.size() <= MAX_BROADCAST_JIDS ) broadCastIntent.putExtra( TreeggerService.EXTRA_JIDS, jids.toArray( new String[jids.size()] ) );
+            context.sendBroadcast( broadCastIntent );
+        }
+        else
+        {
+            for( Listener listener : listeners )
+            {
+                listener.onServiceEvent( messageType, jids );
+            }
+        }
+    }
+}
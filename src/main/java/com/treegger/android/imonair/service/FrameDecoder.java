@@ -0,0 +1,119 @@
+package com.treegger.android.imonair.service;
+
+import java.io.IOException;
+
+import com.google.protobuf.CodedInputStream;
+import com.treegger.protobuf.WebSocketProto.Roster;
+import com.treegger.protobuf.WebSocketProto.RosterItem;
+import com.treegger.protobuf.WebSocketProto.WebSocketMessage;
+
+/**
+ * Decodes the frames received from the server straight from the received array.
+ * A roster frame, which may hold thousands of items, is not turned into a Roster:
+ * its items are handed to a RosterHandler one at a time, as they are read.
+ */
+public class FrameDecoder
+{
+    // wire types of the protobuf encoding, not public in WireFormat
+    private static final int WIRETYPE_VARINT = 0;
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+
+    private static final int ROSTER_TAG = makeTag( WebSocketMessage.ROSTER_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED );
+    private static final int ITEM_TAG = makeTag( Roster.ITEM_FIELD_NUMBER, WIRETYPE_LENGTH_DELIMITED );
+    private static final int PUSH_TAG = makeTag( Roster.PUSH_FIELD_NUMBER, WIRETYPE_VARINT );
+
+    public interface RosterHandler
+    {
+        void beginRoster();
+
+        void onRosterItem( RosterItem rosterItem );
+
+        /**
+         * @param push true for a roster push, which updates the items it contains instead of replacing the roster
+         */
+        void endRoster( boolean push );
+
+        /**
+         * The frame was corrupted after some items had been handed.
+         */
+        void abortRoster();
+    }
+
+    /**
+     * @return the decoded message, or null for a roster frame whose items have been handed to the handler
+     */
+    public static WebSocketMessage decode( byte[] frame, RosterHandler rosterHandler ) throws IOException
+    {
+        if( isRosterOnly( frame ) )
+        {
+            streamRoster( frame, rosterHandler );
+            return null;
+        }
+        return WebSocketMessage.parseFrom( frame );
+    }
+
+    // ----------------------------------------------------------------------------
+    // ----------------------------------------------------------------------------
+    // skipping length delimited fields only reads their length, this costs nothing compared to decoding
+    private static boolean isRosterOnly( byte[] frame ) throws IOException
+    {
+        CodedInputStream input = CodedInputStream.newInstance( frame );
+        boolean roster = false;
+        int tag;
+        while( ( tag = input.readTag() ) != 0 )
+        {
+            if( tag != ROSTER_TAG ) return false;
+            roster = true;
+            input.skipField( tag );
+        }
+        return roster;
+    }
+
+    private static int makeTag( int fieldNumber, int wireType )
+    {
+        return ( fieldNumber << 3 ) | wireType;
+    }
+
+    private static void streamRoster( byte[] frame, RosterHandler rosterHandler ) throws IOException
+    {
+        CodedInputStream input = CodedInputStream.newInstance( frame );
+        boolean push = false;
+        boolean completed = false;
+        rosterHandler.beginRoster();
+        try
+        {
+            // like the generated parser, a repeated roster field is merged into one roster
+            while( input.readTag() != 0 )
+            {
+                int rosterLimit = input.pushLimit( input.readRawVarint32() );
+                int tag;
+                while( ( tag = input.readTag() ) != 0 )
+                {
+                    if( tag == ITEM_TAG )
+                    {
+                        int itemLimit = input.pushLimit( input.readRawVarint32() );
+                        RosterItem.Builder rosterItem = RosterItem.newBuilder();
+                        rosterItem.mergeFrom( input );
+                        input.popLimit( itemLimit );
+                        rosterHandler.onRosterItem( rosterItem.build() );
+                    }
+                    else if( tag == PUSH_TAG )
+                    {
+                        push = input.readBool();
+                    }
+                    else if( !input.skipField( tag ) )
+                    {
+                        break;
+                    }
+                }
+                input.popLimit( rosterLimit );
+            }
+            completed = true;
+        }
+        finally
+        {
+            if( completed ) rosterHandler.endRoster( push );
+            else rosterHandler.abortRoster();
+        }
+    }
+}
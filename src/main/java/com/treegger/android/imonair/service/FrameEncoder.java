@@ -0,0 +1,236 @@
+package com.treegger.android.imonair.service;
+
+import java.io.IOException;
+
+import com.google.protobuf.CodedOutputStream;
+import com.treegger.protobuf.WebSocketProto.Ping;
+import com.treegger.protobuf.WebSocketProto.Presence;
+import com.treegger.protobuf.WebSocketProto.TextMessage;
+import com.treegger.protobuf.WebSocketProto.WebSocketMessage;
+
+/**
+ * Encodes the frames sent most often (presences, text messages, chat states and pings) without builders.
+ * The size of the frame is computed from the strings themselves, then the fields are written straight
+ * into the frame array, the only allocation. The UTF-8 encoding of the sender JID, part of every
+ * presence and text message, is computed once.
+ * The bytes are the same as those of the generated code for the same fields.
+ */
+public class FrameEncoder
+{
+    // wire type of the protobuf encoding, not public in WireFormat
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+
+    private byte[] fromJID = new byte[ 0 ];
+
+    public synchronized void setFromJID( String jid )
+    {
+        fromJID = utf8( jid );
+    }
+
+    public byte[] encodePresence( String type, String show, String status )
+    {
+        byte[] from = getFromJID();
+        int size = bytesSize( Presence.FROM_FIELD_NUMBER, from.length )
+                 + stringSize( Presence.TYPE_FIELD_NUMBER, type )
+                 + stringSize( Presence.SHOW_FIELD_NUMBER, show )
+                 + stringSize( Presence.STATUS_FIELD_NUMBER, status );
+        try
+        {
+            byte[] frame = new byte[ bytesSize( WebSocketMessage.PRESENCE_FIELD_NUMBER, size ) ];
+            CodedOutputStream output = startFrame( frame, WebSocketMessage.PRESENCE_FIELD_NUMBER, size );
+            writeBytes( output, Presence.FROM_FIELD_NUMBER, from );
+            writeString( output, Presence.TYPE_FIELD_NUMBER, type );
+            writeString( output, Presence.SHOW_FIELD_NUMBER, show );
+            writeString( output, Presence.STATUS_FIELD_NUMBER, status );
+            output.checkNoSpaceLeft();
+            return frame;
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalStateException( e.getMessage() );
+        }
+    }
+
+    public byte[] encodeTextMessage( String id, String to, String body )
+    {
+        byte[] from = getFromJID();
+        int size = stringSize( TextMessage.ID_FIELD_NUMBER, id )
+                 + stringSize( TextMessage.TOUSER_FIELD_NUMBER, to )
+                 + bytesSize( TextMessage.FROMUSER_FIELD_NUMBER, from.length )
+                 + stringSize( TextMessage.BODY_FIELD_NUMBER, body );
+        try
+        {
+            byte[] frame = new byte[ bytesSize( WebSocketMessage.TEXTMESSAGE_FIELD_NUMBER, size ) ];
+            CodedOutputStream output = startFrame( frame, WebSocketMessage.TEXTMESSAGE_FIELD_NUMBER, size );
+            writeString( output, TextMessage.ID_FIELD_NUMBER, id );
+            writeString( output, TextMessage.TOUSER_FIELD_NUMBER, to );
+            writeBytes( output, TextMessage.FROMUSER_FIELD_NUMBER, from );
+            writeString( output, TextMessage.BODY_FIELD_NUMBER, body );
+            output.checkNoSpaceLeft();
+            return frame;
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalStateException( e.getMessage() );
+        }
+    }
+
+    public byte[] encodeChatState( String to, boolean composing, boolean paused, boolean active, boolean gone )
+    {
+        byte[] from = getFromJID();
+        int size = stringSize( TextMessage.TOUSER_FIELD_NUMBER, to )
+                 + bytesSize( TextMessage.FROMUSER_FIELD_NUMBER, from.length )
+                 + stringSize( TextMessage.TYPE_FIELD_NUMBER, "chat" )
+                 + 4 * boolSize( TextMessage.GONE_FIELD_NUMBER );
+        try
+        {
+            byte[] frame = new byte[ bytesSize( WebSocketMessage.TEXTMESSAGE_FIELD_NUMBER, size ) ];
+            CodedOutputStream output = startFrame( frame, WebSocketMessage.TEXTMESSAGE_FIELD_NUMBER, size );
+            writeString( output, TextMessage.TOUSER_FIELD_NUMBER, to );
+            writeBytes( output, TextMessage.FROMUSER_FIELD_NUMBER, from );
+            writeString( output, TextMessage.TYPE_FIELD_NUMBER, "chat" );
+            output.writeBool( TextMessage.ACTIVE_FIELD_NUMBER, active );
+            output.writeBool( TextMessage.COMPOSING_FIELD_NUMBER, composing );
+            output.writeBool( TextMessage.PAUSED_FIELD_NUMBER, paused );
+            output.writeBool( TextMessage.GONE_FIELD_NUMBER, gone );
+            output.checkNoSpaceLeft();
+            return frame;
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalStateException( e.getMessage() );
+        }
+    }
+
+    public byte[] encodePing( String id )
+    {
+        int size = stringSize( Ping.ID_FIELD_NUMBER, id );
+        try
+        {
+            byte[] frame = new byte[ bytesSize( WebSocketMessage.PING_FIELD_NUMBER, size ) ];
+            CodedOutputStream output = startFrame( frame, WebSocketMessage.PING_FIELD_NUMBER, size );
+            writeString( output, Ping.ID_FIELD_NUMBER, id );
+            output.checkNoSpaceLeft();
+            return frame;
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalStateException( e.getMessage() );
+        }
+    }
+
+    // ----------------------------------------------------------------------------
+    // ----------------------------------------------------------------------------
+    private synchronized byte[] getFromJID()
+    {
+        return fromJID;
+    }
+
+    // the frame holds a single field of the WebSocketMessage: the message of the given size
+    private static CodedOutputStream startFrame( byte[] frame, int fieldNumber, int messageSize ) throws IOException
+    {
+        CodedOutputStream output = CodedOutputStream.newInstance( frame );
+        output.writeTag( fieldNumber, WIRETYPE_LENGTH_DELIMITED );
+        output.writeRawVarint32( messageSize );
+        return output;
+    }
+
+    private static int tagSize( int fieldNumber )
+    {
+        return CodedOutputStream.computeRawVarint32Size( fieldNumber << 3 );
+    }
+
+    private static int bytesSize( int fieldNumber, int length )
+    {
+        return tagSize( fieldNumber ) + CodedOutputStream.computeRawVarint32Size( length ) + length;
+    }
+
+    private static int stringSize( int fieldNumber, String value )
+    {
+        return bytesSize( fieldNumber, utf8Length( value ) );
+    }
+
+    private static int boolSize( int fieldNumber )
+    {
+        return tagSize( fieldNumber ) + 1;
+    }
+
+    private static void writeBytes( CodedOutputStream output, int fieldNumber, byte[] value ) throws IOException
+    {
+        output.writeTag( fieldNumber, WIRETYPE_LENGTH_DELIMITED );
+        output.writeRawVarint32( value.length );
+        output.writeRawBytes( value );
+    }
+
+    private static void writeString( CodedOutputStream output, int fieldNumber, String value ) throws IOException
+    {
+        output.writeTag( fieldNumber, WIRETYPE_LENGTH_DELIMITED );
+        output.writeRawVarint32( utf8Length( value ) );
+        int length = value.length();
+        for( int i = 0; i < length; i++ )
+        {
+            char c = value.charAt( i );
+            if( c < 0x80 )
+            {
+                output.writeRawByte( c );
+            }
+            else if( c < 0x800 )
+            {
+                output.writeRawByte( 0xC0 | ( c >> 6 ) );
+                output.writeRawByte( 0x80 | ( c & 0x3F ) );
+            }
+            else if( Character.isHighSurrogate( c ) && i + 1 < length && Character.isLowSurrogate( value.charAt( i + 1 ) ) )
+            {
+                int codePoint = Character.toCodePoint( c, value.charAt( ++i ) );
+                output.writeRawByte( 0xF0 | ( codePoint >> 18 ) );
+                output.writeRawByte( 0x80 | ( ( codePoint >> 12 ) & 0x3F ) );
+                output.writeRawByte( 0x80 | ( ( codePoint >> 6 ) & 0x3F ) );
+                output.writeRawByte( 0x80 | ( codePoint & 0x3F ) );
+            }
+            else if( Character.isHighSurrogate( c ) || Character.isLowSurrogate( c ) )
+            {
+                // unpaired surrogate, replaced like String.getBytes does
+                output.writeRawByte( '?' );
+            }
+            else
+            {
+                output.writeRawByte( 0xE0 | ( c >> 12 ) );
+                output.writeRawByte( 0x80 | ( ( c >> 6 ) & 0x3F ) );
+                output.writeRawByte( 0x80 | ( c & 0x3F ) );
+            }
+        }
+    }
+
+    // length of the UTF-8 encoding, without encoding
+    private static int utf8Length( String value )
+    {
+        int length = value.length();
+        int utf8Length = 0;
+        for( int i = 0; i < length; i++ )
+        {
+            char c = value.charAt( i );
+            if( c < 0x80 ) utf8Length += 1;
+            else if( c < 0x800 ) utf8Length += 2;
+            else if( Character.isHighSurrogate( c ) && i + 1 < length && Character.isLowSurrogate( value.charAt( i + 1 ) ) )
+            {
+                utf8Length += 4;
+                i++;
+            }
+            else if( Character.isHighSurrogate( c ) || Character.isLowSurrogate( c ) ) utf8Length += 1;
+            else utf8Length += 3;
+        }
+        return utf8Length;
+    }
+
+    private static byte[] utf8( String value )
+    {
+        try
+        {
+            return value.getBytes( "UTF-8" );
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalStateException( e.getMessage() );
+        }
+    }
+}
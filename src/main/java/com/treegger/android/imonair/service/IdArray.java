@@ -0,0 +1,60 @@
+package com.treegger.android.imonair.service;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Values indexed by the dense ids of a JidTable. Reads do not lock,
+ * writes are serialized and grow the array as ids are allocated.
+ */
+public class IdArray<T>
+{
+    private static final int INITIAL_CAPACITY = 64;
+
+    private volatile AtomicReferenceArray<T> values = new AtomicReferenceArray<T>( INITIAL_CAPACITY );
+
+    public T get( int id )
+    {
+        AtomicReferenceArray<T> current = values;
+        if( id < 0 || id >= current.length() ) return null;
+        return current.get( id );
+    }
+
+    /**
+     * @return the previous value
+     */
+    public synchronized T set( int id, T value )
+    {
+        if( id < 0 ) throw new IllegalArgumentException( "invalid id " + id );
+        AtomicReferenceArray<T> current = values;
+        if( id >= current.length() )
+        {
+            if( value == null ) return null;
+            AtomicReferenceArray<T> grown = new AtomicReferenceArray<T>( Math.max( id + 1, current.length() * 2 ) );
+            for( int i = 0; i < current.length(); i++ ) grown.set( i, current.get( i ) );
+            values = current = grown;
+        }
+        return current.getAndSet( id, value );
+    }
+
+    /**
+     * @return the value in place, null when the given value has been set
+     */
+    public synchronized T putIfAbsent( int id, T value )
+    {
+        T current = get( id );
+        if( current != null ) return current;
+        set( id, value );
+        return null;
+    }
+
+    public T remove( int id )
+    {
+        if( id < 0 ) return null;
+        return set( id, null );
+    }
+
+    public synchronized void clear()
+    {
+        values = new AtomicReferenceArray<T>( INITIAL_CAPACITY );
+    }
+}
@@ -0,0 +1,158 @@
+package com.treegger.android.imonair.service;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Gives each bare JID (user@host) a dense int id, the index of the per-contact state.
+ * A full JID is looked up by its bare part without creating a substring: the string
+ * of a JID is only copied the first time it is seen.
+ * Lookups never lock, as in IdArray: only the allocation of a new id is serialized.
+ */
+public class JidTable
+{
+    public static final int NO_ID = -1;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    /**
+     * Arrays of a given capacity: replaced as a whole when they are full, never shrunk.
+     */
+    private static class Table
+    {
+        // by id
+        private final String[] jids;
+        private final int[] hashes;
+        // open addressing, id + 1 or 0 for a free slot, twice the capacity so never more than half full
+        private final AtomicIntegerArray slots;
+
+        private Table( int capacity )
+        {
+            jids = new String[ capacity ];
+            hashes = new int[ capacity ];
+            slots = new AtomicIntegerArray( capacity * 2 );
+        }
+    }
+
+    // readers do not lock: an id is written to its slot after its JID, and the table is published before it is written
+    private volatile Table table = new Table( INITIAL_CAPACITY );
+    private volatile int size = 0;
+
+    /**
+     * @return the length of the user@host part of the JID
+     */
+    public static int bareLength( String jid )
+    {
+        int i = jid.indexOf( '/' );
+        if( i > 0 ) return i;
+        return jid.length();
+    }
+
+    /**
+     * @return the index at which the resource of the JID starts, -1 when it has none
+     */
+    public static int resourceStart( String jid )
+    {
+        int length = bareLength( jid );
+        if( length < jid.length() ) return length + 1;
+        return -1;
+    }
+
+    /**
+     * @return the id of the bare part of the JID, allocated when it is seen for the first time
+     */
+    public int intern( String jid )
+    {
+        int id = find( jid );
+        if( id != NO_ID ) return id;
+        synchronized( this )
+        {
+            return lookup( jid, true );
+        }
+    }
+
+    /**
+     * Never locks.
+     * @return the id of the bare part of the JID, NO_ID when it has never been interned
+     */
+    public int find( String jid )
+    {
+        return lookup( jid, false );
+    }
+
+    /**
+     * @return the bare JID of the id
+     */
+    public String get( int id )
+    {
+        if( id < 0 || id >= size ) return null;
+        return table.jids[ id ];
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    // ----------------------------------------------------------------------------
+    // ----------------------------------------------------------------------------
+    // called with the lock held when inserting
+    private int lookup( String jid, boolean insert )
+    {
+        int length = bareLength( jid );
+        int hash = hash( jid, length );
+        Table current = table;
+        int mask = current.slots.length() - 1;
+        for( int i = hash & mask; ; i = ( i + 1 ) & mask )
+        {
+            int slot = current.slots.get( i );
+            if( slot == 0 )
+            {
+                if( !insert ) return NO_ID;
+                return add( jid, length, hash );
+            }
+            int id = slot - 1;
+            String bare = current.jids[ id ];
+            if( current.hashes[ id ] == hash && bare.length() == length && jid.regionMatches( 0, bare, 0, length ) ) return id;
+        }
+    }
+
+    private int add( String jid, int length, int hash )
+    {
+        int id = size;
+        Table current = table;
+        if( id == current.jids.length ) table = current = grow( current );
+        current.jids[ id ] = length == jid.length() ? jid : jid.substring( 0, length );
+        current.hashes[ id ] = hash;
+        current.slots.set( freeSlot( current, hash ), id + 1 );
+        size = id + 1;
+        return id;
+    }
+
+    private Table grow( Table current )
+    {
+        Table grown = new Table( current.jids.length * 2 );
+        System.arraycopy( current.jids, 0, grown.jids, 0, size );
+        System.arraycopy( current.hashes, 0, grown.hashes, 0, size );
+        for( int id = 0; id < size; id++ )
+        {
+            grown.slots.set( freeSlot( grown, grown.hashes[ id ] ), id + 1 );
+        }
+        return grown;
+    }
+
+    private static int freeSlot( Table table, int hash )
+    {
+        int mask = table.slots.length() - 1;
+        int i = hash & mask;
+        while( table.slots.get( i ) != 0 ) i = ( i + 1 ) & mask;
+        return i;
+    }
+
+    // String.hashCode of the bare part, spread for the power of two table
+    private static int hash( String jid, int length )
+    {
+        int h = 0;
+        for( int i = 0; i < length; i++ ) h = 31 * h + jid.charAt( i );
+        return h ^ ( h >>> 16 );
+    }
+}
@@ -0,0 +1,152 @@
+package com.treegger.android.imonair.service;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Learns how long a connection may stay silent before the network (usually a NAT) drops it.
+ * The interval starts short and grows after it has been survived a few times; a disconnection
+ * caused by a timeout brings it back to the last safe interval and stops probing above the failed one.
+ * What has been learned is kept for each network type, so that switching between wifi and mobile
+ * does not start over, and saved to a store so that a restart of the service does not either.
+ */
+public class KeepAlivePolicy
+{
+    public static final long MIN_INTERVAL = 30*1000;
+    public static final long MAX_INTERVAL = 15*60*1000;
+    // intervals survived before trying a longer one
+    private static final int SURVIVALS_TO_GROW = 2;
+
+    public static final int UNKNOWN_NETWORK = -1;
+
+    public interface Store
+    {
+        /**
+         * @return the safe interval then the ceiling saved for the network type, null if none
+         */
+        long[] load( int networkType );
+
+        void save( int networkType, long safeInterval, long ceiling );
+    }
+
+    private static class NetworkState
+    {
+        // longest interval known to keep the connection
+        private long safeInterval = MIN_INTERVAL;
+        // interval in use, longer than the safe one while probing
+        private long interval = MIN_INTERVAL;
+        private long ceiling = MAX_INTERVAL;
+        private int survivals = 0;
+    }
+
+    private final Map<Integer,NetworkState> states = new HashMap<Integer, NetworkState>();
+    private final Store store;
+    private int currentNetworkType;
+    private NetworkState current;
+
+    public KeepAlivePolicy()
+    {
+        this( null );
+    }
+
+    /**
+     * @param store null to learn again after each restart
+     */
+    public KeepAlivePolicy( Store store )
+    {
+        this.store = store;
+        setNetworkType( UNKNOWN_NETWORK );
+    }
+
+    public synchronized void setNetworkType( int networkType )
+    {
+        currentNetworkType = networkType;
+        current = states.get( networkType );
+        if( current == null )
+        {
+            current = new NetworkState();
+            long[] saved = store != null ? store.load( networkType ) : null;
+            if( saved != null )
+            {
+                current.safeInterval = Math.min( MAX_INTERVAL, Math.max( MIN_INTERVAL, saved[ 0 ] ) );
+                current.ceiling = Math.min( MAX_INTERVAL, Math.max( current.safeInterval, saved[ 1 ] ) );
+                current.interval = current.safeInterval;
+            }
+            states.put( networkType, current );
+        }
+        current.survivals = 0;
+    }
+
+    /**
+     * Silence to leave before the next keepalive.
+     */
+    public synchronized long getInterval()
+    {
+        return current.interval;
+    }
+
+    public synchronized long getSafeInterval()
+    {
+        return current.safeInterval;
+    }
+
+    /**
+     * @return false when the interval is known never to reach the given one on this network
+     */
+    public synchronized boolean mayReach( long interval )
+    {
+        return current.ceiling >= interval;
+    }
+
+    /**
+     * The connection has stayed up after a silence of the given duration.
+     */
+    public synchronized void onIntervalSurvived( long silence )
+    {
+        if( silence < current.interval ) return;
+        if( current.interval > current.safeInterval )
+        {
+            current.safeInterval = current.interval;
+            save();
+        }
+        if( ++current.survivals >= SURVIVALS_TO_GROW && current.interval < current.ceiling )
+        {
+            current.interval = Math.min( current.ceiling, roundUp( current.interval * 3 / 2 ) );
+            current.survivals = 0;
+        }
+    }
+
+    /**
+     * The connection was dropped after a silence of the given duration.
+     * A drop after a shorter silence than the interval in use says nothing about it and is ignored.
+     */
+    public synchronized void onTimeout( long silence )
+    {
+        if( silence < current.interval ) return;
+        if( current.interval > current.safeInterval )
+        {
+            // the probe failed: never try that long again on this network
+            current.ceiling = Math.max( current.safeInterval, current.interval - MIN_INTERVAL );
+        }
+        else
+        {
+            // even the safe interval failed: the network got stricter
+            current.safeInterval = Math.max( MIN_INTERVAL, roundUp( current.safeInterval / 2 ) );
+            current.ceiling = current.safeInterval;
+        }
+        current.interval = current.safeInterval;
+        current.survivals = 0;
+        save();
+    }
+
+    private void save()
+    {
+        if( store != null ) store.save( currentNetworkType, current.safeInterval, current.ceiling );
+    }
+
+    // keepalives are checked every MIN_INTERVAL
+    private static long roundUp( long interval )
+    {
+        return ( ( interval + MIN_INTERVAL - 1 ) / MIN_INTERVAL ) * MIN_INTERVAL;
+    }
+}
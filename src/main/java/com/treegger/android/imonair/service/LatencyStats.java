@@ -0,0 +1,54 @@
+package com.treegger.android.imonair.service;
+
+import java.util.Arrays;
+
+/**
+ * The last round trip times measured on a connection, from which percentiles are computed on demand.
+ */
+public class LatencyStats
+{
+    public static final int DEFAULT_SAMPLE_COUNT = 100;
+
+    private final long[] samples;
+    private int count = 0;
+    private long total = 0;
+
+    public LatencyStats()
+    {
+        this( DEFAULT_SAMPLE_COUNT );
+    }
+
+    public LatencyStats( int sampleCount )
+    {
+        samples = new long[ sampleCount ];
+    }
+
+    public synchronized void add( long rtt )
+    {
+        samples[ (int)( total % samples.length ) ] = rtt;
+        total++;
+        if( count < samples.length ) count++;
+    }
+
+    /**
+     * Number of round trips measured since the creation, including those no longer kept.
+     */
+    public synchronized long getTotalCount()
+    {
+        return total;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the round trip time in milliseconds, -1 when nothing has been measured yet
+     */
+    public synchronized long getPercentile( int percentile )
+    {
+        if( count == 0 ) return -1;
+        long[] sorted = new long[ count ];
+        System.arraycopy( samples, 0, sorted, 0, count );
+        Arrays.sort( sorted );
+        int index = (int) Math.ceil( percentile / 100.0 * count ) - 1;
+        return sorted[ Math.max( 0, Math.min( count - 1, index ) ) ];
+    }
+}
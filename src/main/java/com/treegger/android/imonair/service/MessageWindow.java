@@ -0,0 +1,87 @@
+package com.treegger.android.imonair.service;
+
+import java.util.AbstractList;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed capacity ring buffer of the last messages of a conversation.
+ * Writers must be serialized by the caller. Readers never lock: they take a snapshot,
+ * a view of the messages present at that time which does not copy the buffer.
+ */
+public class MessageWindow
+{
+    private static class Slot
+    {
+        private final long position;
+        private final ChatMessage message;
+
+        private Slot( long position, ChatMessage message )
+        {
+            this.position = position;
+            this.message = message;
+        }
+    }
+
+    private final AtomicReferenceArray<Slot> slots;
+    private final int capacity;
+    // number of messages ever added, published after the slot is written
+    private volatile long end = 0;
+
+    public MessageWindow( int capacity )
+    {
+        if( capacity <= 0 ) throw new IllegalArgumentException( "Capacity must be positive: " + capacity );
+        this.capacity = capacity;
+        this.slots = new AtomicReferenceArray<Slot>( capacity );
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public void add( ChatMessage message )
+    {
+        long position = end;
+        slots.set( (int)( position % capacity ), new Slot( position, message ) );
+        end = position + 1;
+    }
+
+    public Snapshot snapshot()
+    {
+        long to = end;
+        return new Snapshot( Math.max( 0, to - capacity ), to );
+    }
+
+    /**
+     * Messages of the window when the snapshot was taken, oldest first.
+     * When the writer has gone around the buffer since, the overwritten messages are returned as null:
+     * they can still be read from the history store.
+     */
+    public class Snapshot extends AbstractList<ChatMessage>
+    {
+        private final long from;
+        private final long to;
+
+        private Snapshot( long from, long to )
+        {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public ChatMessage get( int index )
+        {
+            if( index < 0 || index >= size() ) throw new IndexOutOfBoundsException( Integer.toString( index ) );
+            long position = from + index;
+            Slot slot = slots.get( (int)( position % capacity ) );
+            if( slot == null || slot.position != position ) return null;
+            return slot.message;
+        }
+
+        @Override
+        public int size()
+        {
+            return (int)( to - from );
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package com.treegger.android.imonair.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * Sends the outgoing messages of a connection from a dedicated thread, so that callers never wait on the socket.
+ * Messages go through a bounded queue: when it is full, offer fails and the caller decides what to do with the message.
+ * Each run of the writer drains the queued messages, drops the ones superseded by a later message with the same
+ * coalescing key (presence, chat state), then sends the others in order, one frame per socket write.
+ * The writer thread stops when idle and is started again by the next message.
+ */
+public class OutboundWriter
+{
+    public static final String TAG = "OutboundWriter";
+
+    public static final int DEFAULT_CAPACITY = 256;
+    private static final int MAX_BATCH_SIZE = 64;
+    private static final long IDLE_TIMEOUT = 60*1000;
+
+    public interface FrameSink
+    {
+        void send( byte[] frame ) throws IOException;
+
+        /**
+         * Called from the writer thread once a frame offered as durable has been handed to the socket.
+         */
+        void onSent( byte[] frame );
+
+        /**
+         * Called from the writer thread with a frame offered as durable which could not be sent.
+         */
+        void onUndelivered( byte[] frame );
+    }
+
+    private static class Frame
+    {
+        private final byte[] bytes;
+        private final String coalescingKey;
+        private final boolean durable;
+
+        private Frame( byte[] bytes, String coalescingKey, boolean durable )
+        {
+            this.bytes = bytes;
+            this.coalescingKey = coalescingKey;
+            this.durable = durable;
+        }
+    }
+
+    private final int capacity;
+    private final BlockingQueue<Frame> queue;
+    private final FrameSink sink;
+
+    private Thread writerThread;
+    private volatile boolean sending = false;
+
+    private final AtomicLong sentFrames = new AtomicLong();
+    private final AtomicLong coalescedFrames = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final AtomicLong rejectedFrames = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    public OutboundWriter( int capacity, FrameSink sink )
+    {
+        this.capacity = capacity;
+        this.queue = new ArrayBlockingQueue<Frame>( capacity );
+        this.sink = sink;
+    }
+
+    /**
+     * Never blocks.
+     * @param coalescingKey messages with the same key supersede each other, null when every message counts
+     * @param durable true for a message handed back to the sink when it cannot be sent
+     * @return false when the queue is full and the message has not been accepted
+     */
+    public boolean offer( byte[] frame, String coalescingKey, boolean durable )
+    {
+        if( !queue.offer( new Frame( frame, coalescingKey, durable ) ) )
+        {
+            rejectedFrames.incrementAndGet();
+            return false;
+        }
+        startWriter();
+        return true;
+    }
+
+    public int getQueueDepth()
+    {
+        return queue.size();
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    /**
+     * True when the queue is more than three quarters full: callers should hold back optional messages.
+     */
+    public boolean isCongested()
+    {
+        return queue.size() * 4 > capacity * 3;
+    }
+
+    public long getSentFrames()
+    {
+        return sentFrames.get();
+    }
+
+    public long getCoalescedFrames()
+    {
+        return coalescedFrames.get();
+    }
+
+    public long getDroppedFrames()
+    {
+        return droppedFrames.get();
+    }
+
+    public long getRejectedFrames()
+    {
+        return rejectedFrames.get();
+    }
+
+    /**
+     * @return the number of times the queue has been drained
+     */
+    public long getBatches()
+    {
+        return batches.get();
+    }
+
+    /**
+     * Waits until every queued message has been handed to the socket, at most the given time.
+     * @return true if the queue has been emptied
+     */
+    public boolean awaitEmpty( long timeout ) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeout;
+        while( !queue.isEmpty() || sending )
+        {
+            if( System.currentTimeMillis() >= deadline ) return false;
+            Thread.sleep( 20 );
+        }
+        return true;
+    }
+
+    // ----------------------------------------------------------------------------
+    // ----------------------------------------------------------------------------
+    private synchronized void startWriter()
+    {
+        if( writerThread == null )
+        {
+            writerThread = new Thread( new Runnable()
+            {
+                public void run()
+                {
+                    write();
+                }
+            }, TAG );
+            writerThread.setDaemon( true );
+            writerThread.start();
+        }
+    }
+
+    private boolean stopWriterIfIdle()
+    {
+        synchronized( this )
+        {
+            if( queue.isEmpty() )
+            {
+                writerThread = null;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private void write()
+    {
+        List<Frame> batch = new ArrayList<Frame>( MAX_BATCH_SIZE );
+        while( true )
+        {
+            try
+            {
+                Frame first = queue.poll( IDLE_TIMEOUT, TimeUnit.MILLISECONDS );
+                if( first == null )
+                {
+                    if( stopWriterIfIdle() ) return;
+                    continue;
+                }
+                sending = true;
+                batch.add( first );
+                queue.drainTo( batch, MAX_BATCH_SIZE - 1 );
+                sendFrames( coalesce( batch ) );
+            }
+            catch ( InterruptedException e )
+            {
+                synchronized( this )
+                {
+                    writerThread = null;
+                }
+                return;
+            }
+            catch ( RuntimeException e )
+            {
+                Log.e( TAG, e.getMessage(), e );
+            }
+            finally
+            {
+                batch.clear();
+                sending = false;
+            }
+        }
+    }
+
+    private List<Frame> coalesce( List<Frame> batch )
+    {
+        Map<String,Integer> lastIndexes = new HashMap<String, Integer>();
+        for( int i = 0; i < batch.size(); i++ )
+        {
+            String coalescingKey = batch.get( i ).coalescingKey;
+            if( coalescingKey != null ) lastIndexes.put( coalescingKey, i );
+        }
+        if( lastIndexes.isEmpty() ) return batch;
+
+        List<Frame> frames = new ArrayList<Frame>( batch.size() );
+        for( int i = 0; i < batch.size(); i++ )
+        {
+            Frame frame = batch.get( i );
+            if( frame.coalescingKey == null || lastIndexes.get( frame.coalescingKey ) == i ) frames.add( frame );
+            else coalescedFrames.incrementAndGet();
+        }
+        return frames;
+    }
+
+    private void sendFrames( List<Frame> frames )
+    {
+        batches.incrementAndGet();
+        for( int i = 0; i < frames.size(); i++ )
+        {
+            Frame frame = frames.get( i );
+            try
+            {
+                sink.send( frame.bytes );
+                sentFrames.incrementAndGet();
+                if( frame.durable ) sink.onSent( frame.bytes );
+            }
+            catch ( IOException e )
+            {
+                Log.w( TAG, e.getMessage(), e );
+                // the connection is gone: keep what must be delivered, drop the rest
+                for( int j = i; j < frames.size(); j++ )
+                {
+                    Frame undelivered = frames.get( j );
+                    if( undelivered.durable ) sink.onUndelivered( undelivered.bytes );
+                    else droppedFrames.incrementAndGet();
+                }
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package com.treegger.android.imonair.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Serialized messages waiting for a connection, kept on disk so that they survive a restart.
+ * Frames are appended to a log and consumed from its head, whose offset is saved in a side file.
+ * The total size of pending frames is bounded, and frames older than the maximum age are dropped
+ * instead of being delivered.
+ * A frame handed out by next stays in the log until its delivery is confirmed: a frame which could not be sent
+ * is released and handed out again, before the ones appended after it.
+ */
+public class Outbox
+{
+    public static final String TAG = "Outbox";
+
+    public static final int DEFAULT_MAX_SIZE = 256*1024;
+    public static final long DEFAULT_MAX_AGE = 24*60*60*1000;
+
+    private static final String HEAD_SUFFIX = ".head";
+    // date, frame length and checksum around the frame
+    private static final int RECORD_OVERHEAD = 16;
+    // consumed bytes at the head of the log above which the live records are moved to its start
+    private static final int COMPACT_THRESHOLD = 64*1024;
+
+    private final File file;
+    private final File headFile;
+    private final int maxSize;
+    private final long maxAge;
+
+    private RandomAccessFile log;
+    private long head = 0;
+    // offset of the next frame to hand out, the frames between head and cursor are in flight
+    private long cursor = 0;
+    private final LinkedList<InFlightFrame> inFlight = new LinkedList<InFlightFrame>();
+    // frames released while others handed out after them were still being sent, by identity
+    private final LinkedList<byte[]> released = new LinkedList<byte[]>();
+    private int pendingCount = 0;
+    private long pendingSize = 0;
+
+    private static class InFlightFrame
+    {
+        // null for an expired frame behind frames in flight, removed with them
+        private final byte[] frame;
+        private long offset;
+
+        private InFlightFrame( byte[] frame, long offset )
+        {
+            this.frame = frame;
+            this.offset = offset;
+        }
+    }
+
+    public Outbox( File file )
+    {
+        this( file, DEFAULT_MAX_SIZE, DEFAULT_MAX_AGE );
+    }
+
+    public Outbox( File file, int maxSize, long maxAge )
+    {
+        this.file = file;
+        this.headFile = new File( file.getParentFile(), file.getName() + HEAD_SUFFIX );
+        this.maxSize = maxSize;
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * @return false when the outbox is full or cannot be written, the frame is then lost
+     */
+    public synchronized boolean add( byte[] frame )
+    {
+        if( pendingSize + frame.length + RECORD_OVERHEAD > maxSize ) return false;
+        try
+        {
+            open();
+            long end = log.length();
+            byte[] record = new byte[ frame.length + RECORD_OVERHEAD ];
+            writeLong( record, 0, System.currentTimeMillis() );
+            writeInt( record, 8, frame.length );
+            System.arraycopy( frame, 0, record, 12, frame.length );
+            writeInt( record, 12 + frame.length, checksum( frame ) );
+            log.seek( end );
+            log.write( record );
+            pendingCount++;
+            pendingSize += record.length;
+            return true;
+        }
+        catch ( IOException e )
+        {
+            Log.w( TAG, e.getMessage(), e );
+            return false;
+        }
+    }
+
+    /**
+     * Hands out the oldest frame which is neither expired nor in flight.
+     * The frame stays in the outbox until it is confirmed or released.
+     * @return null if there is none
+     */
+    public synchronized byte[] next()
+    {
+        try
+        {
+            open();
+            while( cursor < log.length() )
+            {
+                long offset = cursor;
+                log.seek( offset );
+                long date = log.readLong();
+                byte[] frame = new byte[ log.readInt() ];
+                log.readFully( frame );
+                cursor += frame.length + RECORD_OVERHEAD;
+                if( date + maxAge >= System.currentTimeMillis() )
+                {
+                    inFlight.add( new InFlightFrame( frame, offset ) );
+                    return frame;
+                }
+                Log.w( TAG, "Dropping expired message from " + file.getName() );
+                if( inFlight.isEmpty() ) advanceHead( frame.length );
+                else inFlight.add( new InFlightFrame( null, offset ) );
+            }
+        }
+        catch ( IOException e )
+        {
+            Log.w( TAG, e.getMessage(), e );
+        }
+        return null;
+    }
+
+    /**
+     * Removes a frame handed out by next once it has been sent.
+     * @return false if the frame is not the oldest one in flight: it had been released and is handed out again
+     */
+    public synchronized boolean confirm( byte[] frame )
+    {
+        if( inFlight.isEmpty() || inFlight.getFirst().frame != frame )
+        {
+            removeIdentity( released, frame );
+            return false;
+        }
+        try
+        {
+            open();
+            inFlight.removeFirst();
+            removeHead();
+            while( !inFlight.isEmpty() && inFlight.getFirst().frame == null )
+            {
+                inFlight.removeFirst();
+                removeHead();
+            }
+        }
+        catch ( IOException e )
+        {
+            Log.w( TAG, e.getMessage(), e );
+        }
+        return true;
+    }
+
+    /**
+     * Gives back a frame handed out by next which could not be sent. It is handed out again by the next call
+     * to next, and so are the frames handed out after it, which are released too.
+     * @return false if the frame does not come from the outbox
+     */
+    public synchronized boolean release( byte[] frame )
+    {
+        for( int i = 0; i < inFlight.size(); i++ )
+        {
+            if( inFlight.get( i ).frame == frame )
+            {
+                cursor = inFlight.get( i ).offset;
+                while( inFlight.size() > i )
+                {
+                    byte[] releasedFrame = inFlight.removeLast().frame;
+                    if( releasedFrame != null && releasedFrame != frame ) released.add( releasedFrame );
+                }
+                return true;
+            }
+        }
+        return removeIdentity( released, frame );
+    }
+
+    public synchronized int size()
+    {
+        try
+        {
+            open();
+        }
+        catch ( IOException e )
+        {
+            Log.w( TAG, e.getMessage(), e );
+        }
+        return pendingCount;
+    }
+
+    public synchronized void close()
+    {
+        if( log != null )
+        {
+            try
+            {
+                log.close();
+            }
+            catch ( IOException e )
+            {
+                Log.w( TAG, e.getMessage(), e );
+            }
+            log = null;
+        }
+        inFlight.clear();
+        released.clear();
+    }
+
+    // ----------------------------------------------------------------------------
+    // ----------------------------------------------------------------------------
+    private void removeHead() throws IOException
+    {
+        log.seek( head + 8 );
+        advanceHead( log.readInt() );
+    }
+
+    private void advanceHead( int frameLength ) throws IOException
+    {
+        head += frameLength + RECORD_OVERHEAD;
+        pendingCount--;
+        pendingSize -= frameLength + RECORD_OVERHEAD;
+        if( pendingCount == 0 )
+        {
+            // nothing left: start again from an empty log
+            head = 0;
+            cursor = 0;
+            pendingSize = 0;
+            log.setLength( 0 );
+        }
+        else if( head >= COMPACT_THRESHOLD && head > pendingSize )
+        {
+            compact();
+        }
+        saveHead();
+    }
+
+    /**
+     * Moves the live records to the start of the log. The log is truncated before the new head is saved:
+     * after a crash in between, the saved head is past the end of the log and is reset to its start.
+     */
+    private void compact() throws IOException
+    {
+        byte[] live = new byte[ (int) pendingSize ];
+        log.seek( head );
+        log.readFully( live );
+        log.seek( 0 );
+        log.write( live );
+        log.setLength( pendingSize );
+        for( InFlightFrame inFlightFrame : inFlight ) inFlightFrame.offset -= head;
+        cursor -= head;
+        head = 0;
+    }
+
+    private void saveHead() throws IOException
+    {
+        RandomAccessFile headOut = new RandomAccessFile( headFile, "rw" );
+        try
+        {
+            headOut.seek( 0 );
+            headOut.writeLong( head );
+            headOut.setLength( 8 );
+        }
+        finally
+        {
+            headOut.close();
+        }
+    }
+
+    // reads the head and counts the complete records after it, a torn record at the end is dropped
+    private void open() throws IOException
+    {
+        if( log != null ) return;
+        log = new RandomAccessFile( file, "rw" );
+        head = 0;
+        if( headFile.length() == 8 )
+        {
+            RandomAccessFile headIn = new RandomAccessFile( headFile, "r" );
+            try
+            {
+                head = headIn.readLong();
+            }
+            finally
+            {
+                headIn.close();
+            }
+        }
+        long length = log.length();
+        if( head < 0 || head > length ) head = 0;
+
+        pendingCount = 0;
+        pendingSize = 0;
+        long offset = head;
+        while( offset + RECORD_OVERHEAD <= length )
+        {
+            log.seek( offset + 8 );
+            int frameLength = log.readInt();
+            if( frameLength < 0 || offset + RECORD_OVERHEAD + frameLength > length ) break;
+            byte[] frame = new byte[ frameLength ];
+            log.readFully( frame );
+            if( log.readInt() != checksum( frame ) ) break;
+            offset += RECORD_OVERHEAD + frameLength;
+            pendingCount++;
+            pendingSize += RECORD_OVERHEAD + frameLength;
+        }
+        if( offset != length ) log.setLength( offset );
+        cursor = head;
+        inFlight.clear();
+        released.clear();
+    }
+
+    private static boolean removeIdentity( LinkedList<byte[]> frames, byte[] frame )
+    {
+        for( Iterator<byte[]> i = frames.iterator(); i.hasNext(); )
+        {
+            if( i.next() == frame )
+            {
+                i.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void writeLong( byte[] bytes, int offset, long value )
+    {
+        writeInt( bytes, offset, (int)( value >>> 32 ) );
+        writeInt( bytes, offset + 4, (int) value );
+    }
+
+    private static void writeInt( byte[] bytes, int offset, int value )
+    {
+        bytes[ offset ] = (byte)( value >>> 24 );
+        bytes[ offset + 1 ] = (byte)( value >>> 16 );
+        bytes[ offset + 2 ] = (byte)( value >>> 8 );
+        bytes[ offset + 3 ] = (byte) value;
+    }
+
+    private static int checksum( byte[] bytes )
+    {
+        CRC32 crc = new CRC32();
+        crc.update( bytes );
+        return (int) crc.getValue();
+    }
+}
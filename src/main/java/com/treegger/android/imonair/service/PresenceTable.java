@@ -0,0 +1,89 @@
+package com.treegger.android.imonair.service;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.treegger.protobuf.WebSocketProto.Presence;
+
+/**
+ * Presences of every contact, by resource. The presence to display for a contact
+ * is resolved when a presence is received, so reading it is a single lookup.
+ * Contacts are identified by their JidTable id.
+ */
+public class PresenceTable
+{
+    private static final String TYPE_UNAVAILABLE = "unavailable";
+
+    private IdArray<ContactPresences> contacts = new IdArray<ContactPresences>();
+
+    /**
+     * @return the new best presence of the contact, null when it has no more available resource
+     */
+    public Presence put( int contact, Presence presence )
+    {
+        ContactPresences contactPresences = contacts.get( contact );
+        if( contactPresences == null )
+        {
+            contactPresences = new ContactPresences();
+            ContactPresences previous = contacts.putIfAbsent( contact, contactPresences );
+            if( previous != null ) contactPresences = previous;
+        }
+        return contactPresences.put( presence );
+    }
+
+    public Presence getBest( int contact )
+    {
+        ContactPresences contactPresences = contacts.get( contact );
+        if( contactPresences != null ) return contactPresences.best;
+        return null;
+    }
+
+    public void clear()
+    {
+        contacts.clear();
+    }
+
+    // ----------------------------------------------------------------------------
+    // ----------------------------------------------------------------------------
+    private static class ContactPresences
+    {
+        // keyed by full JID, oldest resource first
+        private Map<String,Presence> resources = new LinkedHashMap<String, Presence>( 4 );
+        private volatile Presence best;
+
+        synchronized Presence put( Presence presence )
+        {
+            resources.remove( presence.getFrom() );
+
+            String presenceType = presence.getType();
+            if( presenceType != null && !presenceType.equalsIgnoreCase( TYPE_UNAVAILABLE ) )
+            {
+                resources.put( presence.getFrom(), presence );
+            }
+
+            Presence newBest = null;
+            int bestRank = Integer.MAX_VALUE;
+            for( Presence resourcePresence : resources.values() )
+            {
+                int rank = rank( resourcePresence );
+                if( rank < bestRank )
+                {
+                    newBest = resourcePresence;
+                    bestRank = rank;
+                }
+            }
+            best = newBest;
+            return newBest;
+        }
+
+        // plain available first, then any presence with a show, then the others
+        private static int rank( Presence presence )
+        {
+            boolean noType = presence.getType() == null || presence.getType().length() == 0;
+            boolean noShow = presence.getShow() == null || presence.getShow().length() == 0;
+            if( noType && noShow ) return 0;
+            if( !noShow ) return 1;
+            return 2;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.treegger.android.imonair.service;
+
+import java.util.Random;
+
+/**
+ * Reconnection delays of one connection: capped exponential backoff with jitter.
+ * The backoff is reset once a connection has stayed up long enough to be considered stable.
+ */
+public class ReconnectScheduler
+{
+    public static final long MIN_DELAY = 2*1000;
+    public static final long MAX_DELAY = 5*60*1000;
+    public static final long STABLE_CONNECTION_DURATION = 60*1000;
+
+    private static final Random random = new Random();
+
+    private final long minDelay;
+    private final long maxDelay;
+    private final long stableConnectionDuration;
+
+    private int attempts = 0;
+    private long connectedSince = 0;
+
+    public ReconnectScheduler()
+    {
+        this( MIN_DELAY, MAX_DELAY, STABLE_CONNECTION_DURATION );
+    }
+
+    public ReconnectScheduler( long minDelay, long maxDelay, long stableConnectionDuration )
+    {
+        this.minDelay = minDelay;
+        this.maxDelay = maxDelay;
+        this.stableConnectionDuration = stableConnectionDuration;
+    }
+
+    public synchronized void onConnected( long now )
+    {
+        connectedSince = now;
+    }
+
+    public synchronized void onDisconnected( long now )
+    {
+        if( connectedSince > 0 && now - connectedSince >= stableConnectionDuration ) attempts = 0;
+        connectedSince = 0;
+    }
+
+    /**
+     * @return the delay before the next attempt, between half and all of the current backoff
+     */
+    public synchronized long nextDelay()
+    {
+        long backoff = minDelay << Math.min( attempts, 30 );
+        if( backoff <= 0 || backoff > maxDelay ) backoff = maxDelay;
+        else attempts++;
+        long half = backoff / 2;
+        return half + (long)( random.nextDouble() * ( backoff - half ) );
+    }
+
+    public synchronized int getAttempts()
+    {
+        return attempts;
+    }
+
+    public synchronized void reset()
+    {
+        attempts = 0;
+        connectedSince = 0;
+    }
+}
@@ -0,0 +1,56 @@
+package com.treegger.android.imonair.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.treegger.protobuf.WebSocketProto.RosterItem;
+
+public class RosterChange
+{
+    public static final int ADDED = 1;
+    public static final int UPDATED = 2;
+    public static final int REMOVED = 3;
+
+    public final int type;
+    public final String jid;
+    /** the new item, or the dropped one for a removal */
+    public final RosterItem rosterItem;
+
+    public RosterChange( int type, RosterItem rosterItem )
+    {
+        this.type = type;
+        this.jid = rosterItem.getJid();
+        this.rosterItem = rosterItem;
+    }
+
+    /**
+     * Applies a batch of changes to a list of items in a single pass: the items keep their order,
+     * the added ones are appended. When a JID changes several times in the batch, the last change wins.
+     * @return a new list, the given one is not modified
+     */
+    public static List<RosterItem> apply( List<RosterItem> rosterItems, List<RosterChange> changes )
+    {
+        Map<String,RosterChange> lastChanges = new LinkedHashMap<String, RosterChange>();
+        for( RosterChange change : changes )
+        {
+            // removed first so that the insertion order is the one of the last change
+            lastChanges.remove( change.jid );
+            lastChanges.put( change.jid, change );
+        }
+
+        List<RosterItem> result = new ArrayList<RosterItem>( rosterItems.size() + lastChanges.size() );
+        for( RosterItem rosterItem : rosterItems )
+        {
+            RosterChange change = lastChanges.remove( rosterItem.getJid() );
+            if( change == null ) result.add( rosterItem );
+            else if( change.type != REMOVED ) result.add( change.rosterItem );
+        }
+        for( RosterChange change : lastChanges.values() )
+        {
+            if( change.type != REMOVED ) result.add( change.rosterItem );
+        }
+        return result;
+    }
+}
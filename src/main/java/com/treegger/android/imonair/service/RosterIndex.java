@@ -0,0 +1,187 @@
+package com.treegger.android.imonair.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.treegger.protobuf.WebSocketProto.Roster;
+import com.treegger.protobuf.WebSocketProto.RosterItem;
+
+/**
+ * JID index over the rosters of every account, so that finding the account and
+ * roster item of a contact does not require scanning all rosters.
+ * It is also the merged roster view: each JID appears once whatever the number of
+ * accounts knowing it, and every modification returns the resulting changes.
+ * Modifications must be serialized by the callers, get can be called from any thread at any time.
+ */
+public class RosterIndex
+{
+    public static class Entry
+    {
+        public final Account account;
+        public final RosterItem rosterItem;
+
+        Entry( Account account, RosterItem rosterItem )
+        {
+            this.account = account;
+            this.rosterItem = rosterItem;
+        }
+    }
+
+    // per account items, in roster order, so that an account can be removed without scanning others
+    private Map<Account,Map<String,RosterItem>> accountItems = new LinkedHashMap<Account, Map<String,RosterItem>>();
+
+    // entries are immutable and replaced, so that lookups do not lock
+    private Map<String,Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    public List<RosterChange> put( Account account, Roster roster )
+    {
+        List<RosterChange> changes = new ArrayList<RosterChange>();
+
+        Map<String,RosterItem> previousItems = accountItems.get( account );
+        Map<String,RosterItem> items = new LinkedHashMap<String, RosterItem>();
+        for( RosterItem rosterItem : roster.getItemList() )
+        {
+            items.put( rosterItem.getJid(), rosterItem );
+        }
+
+        if( previousItems != null )
+        {
+            for( RosterItem rosterItem : previousItems.values() )
+            {
+                if( !items.containsKey( rosterItem.getJid() ) ) removeItem( account, rosterItem.getJid(), changes );
+            }
+        }
+        for( RosterItem rosterItem : items.values() )
+        {
+            putItem( account, rosterItem, changes );
+        }
+        return changes;
+    }
+
+    public List<RosterChange> putItem( Account account, RosterItem rosterItem )
+    {
+        List<RosterChange> changes = new ArrayList<RosterChange>( 1 );
+        putItem( account, rosterItem, changes );
+        return changes;
+    }
+
+    public List<RosterChange> removeItem( Account account, String jid )
+    {
+        List<RosterChange> changes = new ArrayList<RosterChange>( 1 );
+        removeItem( account, jid, changes );
+        return changes;
+    }
+
+    /**
+     * Removes the items of the account whose JID is not in the given set.
+     */
+    public List<RosterChange> retainItems( Account account, Set<String> jids )
+    {
+        List<RosterChange> changes = new ArrayList<RosterChange>();
+        Map<String,RosterItem> items = accountItems.get( account );
+        if( items != null )
+        {
+            for( String jid : new ArrayList<String>( items.keySet() ) )
+            {
+                if( !jids.contains( jid ) ) removeItem( account, jid, changes );
+            }
+        }
+        return changes;
+    }
+
+    public List<RosterChange> remove( Account account )
+    {
+        List<RosterChange> changes = new ArrayList<RosterChange>();
+        Map<String,RosterItem> items = accountItems.get( account );
+        if( items != null )
+        {
+            for( String jid : new ArrayList<String>( items.keySet() ) )
+            {
+                removeItem( account, jid, changes );
+            }
+            accountItems.remove( account );
+        }
+        return changes;
+    }
+
+    public Map<Account,Roster> getRosters()
+    {
+        Map<Account,Roster> rosters = new HashMap<Account, Roster>();
+        for( Map.Entry<Account,Map<String,RosterItem>> entry : accountItems.entrySet() )
+        {
+            rosters.put( entry.getKey(), Roster.newBuilder().addAllItem( entry.getValue().values() ).build() );
+        }
+        return rosters;
+    }
+
+    public Entry get( String jid )
+    {
+        return entries.get( jid );
+    }
+
+    public void clear()
+    {
+        accountItems.clear();
+        entries.clear();
+    }
+
+    // ----------------------------------------------------------------------------
+    // ----------------------------------------------------------------------------
+    private void putItem( Account account, RosterItem rosterItem, List<RosterChange> changes )
+    {
+        Map<String,RosterItem> items = accountItems.get( account );
+        if( items == null )
+        {
+            items = new LinkedHashMap<String, RosterItem>();
+            accountItems.put( account, items );
+        }
+        String jid = rosterItem.getJid();
+        items.put( jid, rosterItem );
+
+        Entry entry = entries.get( jid );
+        if( entry == null )
+        {
+            entries.put( jid, new Entry( account, rosterItem ) );
+            changes.add( new RosterChange( RosterChange.ADDED, rosterItem ) );
+        }
+        else if( entry.account.equals( account ) && !sameItem( entry.rosterItem, rosterItem ) )
+        {
+            entries.put( jid, new Entry( account, rosterItem ) );
+            changes.add( new RosterChange( RosterChange.UPDATED, rosterItem ) );
+        }
+    }
+
+    private void removeItem( Account account, String jid, List<RosterChange> changes )
+    {
+        Map<String,RosterItem> items = accountItems.get( account );
+        if( items == null || items.remove( jid ) == null ) return;
+
+        Entry entry = entries.get( jid );
+        if( entry != null && entry.account.equals( account ) )
+        {
+            entries.remove( jid );
+            // the contact may still be known through another account
+            for( Map.Entry<Account,Map<String,RosterItem>> other : accountItems.entrySet() )
+            {
+                RosterItem rosterItem = other.getValue().get( jid );
+                if( rosterItem != null )
+                {
+                    entries.put( jid, new Entry( other.getKey(), rosterItem ) );
+                    if( !sameItem( entry.rosterItem, rosterItem ) ) changes.add( new RosterChange( RosterChange.UPDATED, rosterItem ) );
+                    return;
+                }
+            }
+            changes.add( new RosterChange( RosterChange.REMOVED, entry.rosterItem ) );
+        }
+    }
+
+    private static boolean sameItem( RosterItem item1, RosterItem item2 )
+    {
+        return item1 == item2 || item1.toByteString().equals( item2.toByteString() );
+    }
+}
@@ -0,0 +1,284 @@
+package com.treegger.android.imonair.service;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Delayed and periodic tasks of the whole application, run one at a time by a single daemon thread.
+ * A task scheduled with a key replaces the pending task with the same key, so that repeated requests
+ * (a keystroke, a reconnection) coalesce into one. A failing task is logged and does not stop the others.
+ * Time is read from a Clock: a scheduler built with its own clock has no thread and runs its tasks
+ * from runDueTasks, which lets the clock be driven by hand.
+ */
+public class Scheduler
+{
+    public static final String TAG = "Scheduler";
+
+    public interface Clock
+    {
+        long now();
+    }
+
+    // monotonic: delays are not shifted when the user or the network changes the wall clock
+    public static final Clock SYSTEM_CLOCK = new Clock()
+    {
+        public long now()
+        {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
+    public class Task implements Comparable<Task>
+    {
+        private final Object key;
+        private final Runnable runnable;
+        private final long period;
+        private final long sequence;
+        private long due;
+        private boolean cancelled = false;
+
+        private Task( Object key, Runnable runnable, long due, long period, long sequence )
+        {
+            this.key = key;
+            this.runnable = runnable;
+            this.due = due;
+            this.period = period;
+            this.sequence = sequence;
+        }
+
+        public void cancel()
+        {
+            Scheduler.this.cancel( this );
+        }
+
+        public boolean isCancelled()
+        {
+            synchronized( Scheduler.this )
+            {
+                return cancelled;
+            }
+        }
+
+        public int compareTo( Task other )
+        {
+            if( due != other.due ) return due < other.due ? -1 : 1;
+            // same due time: first scheduled, first run
+            return sequence < other.sequence ? -1 : ( sequence == other.sequence ? 0 : 1 );
+        }
+    }
+
+    private final Clock clock;
+    private final boolean threaded;
+
+    private final PriorityQueue<Task> queue = new PriorityQueue<Task>();
+    private final Map<Object,Task> keyedTasks = new HashMap<Object, Task>();
+    private long sequence = 0;
+    private Thread thread;
+    private boolean shutdown = false;
+
+    public Scheduler()
+    {
+        this( SYSTEM_CLOCK, true );
+    }
+
+    /**
+     * A scheduler without thread: tasks are run by calling runDueTasks.
+     */
+    public Scheduler( Clock clock )
+    {
+        this( clock, false );
+    }
+
+    private Scheduler( Clock clock, boolean threaded )
+    {
+        this.clock = clock;
+        this.threaded = threaded;
+    }
+
+    public Task schedule( Runnable runnable, long delay )
+    {
+        return schedule( null, runnable, delay, 0 );
+    }
+
+    /**
+     * Replaces the pending task with the same key, if any.
+     */
+    public Task schedule( Object key, Runnable runnable, long delay )
+    {
+        return schedule( key, runnable, delay, 0 );
+    }
+
+    /**
+     * Runs the task every period after the first delay, the period counted from the end of the previous run.
+     * Replaces the pending task with the same key, if any.
+     */
+    public Task schedulePeriodic( Object key, Runnable runnable, long delay, long period )
+    {
+        if( period <= 0 ) throw new IllegalArgumentException( "period must be positive" );
+        return schedule( key, runnable, delay, period );
+    }
+
+    /**
+     * @return true if a pending task had this key
+     */
+    public synchronized boolean cancel( Object key )
+    {
+        Task task = keyedTasks.get( key );
+        if( task == null ) return false;
+        cancel( task );
+        return true;
+    }
+
+    public synchronized boolean isScheduled( Object key )
+    {
+        return keyedTasks.containsKey( key );
+    }
+
+    public synchronized int getPendingTaskCount()
+    {
+        return queue.size();
+    }
+
+    /**
+     * Runs, on the calling thread, every task whose time has come according to the clock.
+     * @return the number of tasks run
+     */
+    public int runDueTasks()
+    {
+        int count = 0;
+        Task task;
+        while( ( task = pollDueTask() ) != null )
+        {
+            run( task );
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Drops every pending task, tasks scheduled afterwards are never run.
+     */
+    public synchronized void shutdown()
+    {
+        shutdown = true;
+        queue.clear();
+        keyedTasks.clear();
+        notifyAll();
+    }
+
+    // ----------------------------------------------------------------------------
+    // ----------------------------------------------------------------------------
+    private synchronized Task schedule( Object key, Runnable runnable, long delay, long period )
+    {
+        if( shutdown )
+        {
+            // late requests of components being stopped are ignored
+            Task task = new Task( key, runnable, clock.now() + delay, period, sequence++ );
+            task.cancelled = true;
+            return task;
+        }
+        if( key != null )
+        {
+            Task previous = keyedTasks.get( key );
+            if( previous != null ) cancel( previous );
+        }
+        Task task = new Task( key, runnable, clock.now() + Math.max( 0, delay ), period, sequence++ );
+        queue.add( task );
+        if( key != null ) keyedTasks.put( key, task );
+        if( threaded ) startThread();
+        notifyAll();
+        return task;
+    }
+
+    private synchronized void cancel( Task task )
+    {
+        task.cancelled = true;
+        queue.remove( task );
+        if( task.key != null && keyedTasks.get( task.key ) == task ) keyedTasks.remove( task.key );
+    }
+
+    private synchronized Task pollDueTask()
+    {
+        Task task = queue.peek();
+        if( task == null || task.due > clock.now() ) return null;
+        return queue.poll();
+    }
+
+    private void run( Task task )
+    {
+        try
+        {
+            task.runnable.run();
+        }
+        catch ( RuntimeException e )
+        {
+            Log.e( TAG, e.getMessage(), e );
+        }
+        synchronized( this )
+        {
+            if( task.cancelled || shutdown ) return;
+            if( task.period > 0 )
+            {
+                task.due = clock.now() + task.period;
+                queue.add( task );
+            }
+            else if( task.key != null && keyedTasks.get( task.key ) == task )
+            {
+                keyedTasks.remove( task.key );
+            }
+        }
+    }
+
+    private void startThread()
+    {
+        if( thread == null )
+        {
+            thread = new Thread( new Runnable()
+            {
+                public void run()
+                {
+                    loop();
+                }
+            }, TAG );
+            thread.setDaemon( true );
+            thread.start();
+        }
+    }
+
+    private void loop()
+    {
+        while( true )
+        {
+            Task task;
+            synchronized( this )
+            {
+                if( shutdown )
+                {
+                    thread = null;
+                    return;
+                }
+                task = queue.peek();
+                long delay = task == null ? 0 : task.due - clock.now();
+                if( task == null || delay > 0 )
+                {
+                    try
+                    {
+                        wait( delay );
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        thread = null;
+                        return;
+                    }
+                    continue;
+                }
+                queue.poll();
+            }
+            run( task );
+        }
+    }
+}
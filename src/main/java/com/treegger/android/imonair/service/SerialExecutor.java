@@ -0,0 +1,71 @@
+package com.treegger.android.imonair.service;
+
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.util.Log;
+
+/**
+ * Runs its tasks one after the other, in submission order, on threads borrowed from a shared pool.
+ * Each connection has its own, so that a slow connection only delays itself.
+ */
+public class SerialExecutor implements Executor
+{
+    public static final String TAG = "SerialExecutor";
+
+    private static final ExecutorService SHARED_POOL = Executors.newCachedThreadPool( new ThreadFactory()
+    {
+        public Thread newThread( Runnable runnable )
+        {
+            Thread thread = new Thread( runnable, TAG );
+            thread.setDaemon( true );
+            return thread;
+        }
+    } );
+
+    private final Executor executor;
+    private final LinkedList<Runnable> tasks = new LinkedList<Runnable>();
+    private Runnable active;
+
+    public SerialExecutor()
+    {
+        this( SHARED_POOL );
+    }
+
+    public SerialExecutor( Executor executor )
+    {
+        this.executor = executor;
+    }
+
+    public synchronized void execute( final Runnable task )
+    {
+        tasks.add( new Runnable()
+        {
+            public void run()
+            {
+                try
+                {
+                    task.run();
+                }
+                catch ( RuntimeException e )
+                {
+                    Log.e( TAG, e.getMessage(), e );
+                }
+                finally
+                {
+                    scheduleNext();
+                }
+            }
+        } );
+        if( active == null ) scheduleNext();
+    }
+
+    private synchronized void scheduleNext()
+    {
+        active = tasks.poll();
+        if( active != null ) executor.execute( active );
+    }
+}
@@ -1,13 +1,15 @@
 package com.treegger.android.imonair.service;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import android.app.Notification;
 import android.app.NotificationManager;
@@ -17,12 +19,14 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.graphics.Color;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
+import android.util.Log;
 
 import com.treegger.android.imonair.R;
 import com.treegger.android.imonair.activity.Chat;
@@ -40,6 +44,7 @@ public class TreeggerService
 
     public static final String TREEGGER_BROADCAST_ACTION = "TreeggerServiceBroadcast";
     public static final String EXTRA_MESSAGE_TYPE = "messageType";
+    public static final String EXTRA_JIDS = "jids";
     
     
     public static final int     MESSAGE_TYPE_ROSTER_UPDATE = 1;
@@ -56,19 +61,45 @@ public class TreeggerService
     public static final int     MESSAGE_TYPE_AUTHENTICATING_FINISHED = 7;
     public static final int     MESSAGE_TYPE_PAUSED = 8;
     public static final int     MESSAGE_TYPE_DISCONNECTED = 9;
+    public static final int     MESSAGE_TYPE_ACCOUNT_READY = 10;
     
-    private static final int MAX_MESSAGESLIST_SIZE = 100;
+    public static final int DEFAULT_CONVERSATION_CAPACITY = 100;
     
     private final Binder binder = new LocalBinder();
     protected Handler handler; 
+    protected Scheduler scheduler;
+    protected KeepAlivePolicy keepAlivePolicy;
     
     private AccountStorage accountStorage;
 
-    private Map<Account,TreeggerWebSocketManager> connectionMap = new HashMap<Account, TreeggerWebSocketManager>();
+    // read from the connection threads
+    private Map<Account,TreeggerWebSocketManager> connectionMap = new ConcurrentHashMap<Account, TreeggerWebSocketManager>();
 
 
     // ----------------------------------------------------------------------------
     // ----------------------------------------------------------------------------
+    private final static String KEEPALIVE_PREFERENCES = "keepalive";
+    
+    // the keepalive intervals learned for each network type, kept across restarts of the service
+    private final KeepAlivePolicy.Store keepAliveStore = new KeepAlivePolicy.Store()
+    {
+        public long[] load( int networkType )
+        {
+            SharedPreferences preferences = getSharedPreferences( KEEPALIVE_PREFERENCES, Context.MODE_PRIVATE );
+            if( !preferences.contains( "safe-" + networkType ) ) return null;
+            return new long[] { preferences.getLong( "safe-" + networkType, KeepAlivePolicy.MIN_INTERVAL ),
+                                preferences.getLong( "ceiling-" + networkType, KeepAlivePolicy.MAX_INTERVAL ) };
+        }
+        
+        public void save( int networkType, long safeInterval, long ceiling )
+        {
+            SharedPreferences.Editor editor = getSharedPreferences( KEEPALIVE_PREFERENCES, Context.MODE_PRIVATE ).edit();
+            editor.putLong( "safe-" + networkType, safeInterval );
+            editor.putLong( "ceiling-" + networkType, ceiling );
+            editor.commit();
+        }
+    };
+    
     private BroadcastReceiver receiver = new BroadcastReceiver()
     {
         private final static int NO_NETWORK = -2; 
@@ -89,6 +120,7 @@ public class TreeggerService
                 {
                     if( prevNetworkType != UNDEFINED ) networkChanged = true;
                     prevNetworkType = networkType;
+                    keepAlivePolicy.setNetworkType( networkType );
                 }
                 //String reason = intent.getStringExtra(ConnectivityManager.EXTRA_REASON);
                 
@@ -101,7 +133,10 @@ public class TreeggerService
                 {
                     if( networkInfo.isConnected() && ( isFailover || networkChanged  ) )
                     {
-                        reconnect();
+                        for( TreeggerWebSocketManager webSocketManager : connectionMap.values() )
+                        {
+                            webSocketManager.reconnectNow();
+                        }
                     }
                 }
                 
@@ -113,67 +148,308 @@ public class TreeggerService
     
     // ----------------------------------------------------------------------------
     // ----------------------------------------------------------------------------
-    private Map<Account,Roster> rosterMap = new HashMap<Account, Roster>();
+    public static final String SUBSCRIPTION_REMOVE = "remove";
+
+    // serializes the roster writers, readers use the index lookups or the snapshots and never lock
+    private final Object rosterLock = new Object();
+    private RosterIndex rosterIndex = new RosterIndex();
+    // built on demand, dropped by every roster modification
+    private volatile Map<Account,Roster> rostersSnapshot;
  
-    public synchronized Map<Account,Roster> getRosters()
+    public Map<Account,Roster> getRosters()
     {
-        return rosterMap;
+        Map<Account,Roster> rosters = rostersSnapshot;
+        if( rosters != null ) return rosters;
+        synchronized( rosterLock )
+        {
+            rosters = Collections.unmodifiableMap( rosterIndex.getRosters() );
+            rostersSnapshot = rosters;
+            return rosters;
+        }
     }
     
-    private List<RosterItem> rosterItemsList = new ArrayList<RosterItem>();
-    public synchronized List<RosterItem> getAllRosterItems()
+    // merged roster of all accounts, only replaced from the main thread since it backs the roster adapter
+    private volatile List<RosterItem> rosterItemsList = Collections.emptyList();
+    /**
+     * @return a snapshot of the merged roster, which is not modified afterwards
+     */
+    public List<RosterItem> getAllRosterItems()
+    {
+        return rosterItemsList;
+    }
+    public void addRoster( Account account, Roster roster )
     {
-        for ( Roster roster : getRosters().values() )
+        synchronized( rosterLock )
         {
-            for ( RosterItem rosterItem : roster.getItemList() )
+            applyRosterChanges( rosterIndex.put( account, roster ) );
+        }
+    }
+    /**
+     * Roster push: items are applied one by one to the account roster, items with a "remove" subscription are dropped.
+     */
+    public void applyRosterPush( Account account, Roster roster )
+    {
+        synchronized( rosterLock )
+        {
+            List<RosterChange> changes = new ArrayList<RosterChange>();
+            for( RosterItem rosterItem : roster.getItemList() )
             {
-                boolean found = false;
-                for( RosterItem item : rosterItemsList )
-                {
-                    if( item.getJid().equals( rosterItem.getJid() ) )
-                    {
-                        found = true;
-                        break;
-                    }
-                }
-                if( !found ) rosterItemsList.add( rosterItem );
+                if( SUBSCRIPTION_REMOVE.equalsIgnoreCase( rosterItem.getSubscription() ) )
+                    changes.addAll( rosterIndex.removeItem( account, rosterItem.getJid() ) );
+                else
+                    changes.addAll( rosterIndex.putItem( account, rosterItem ) );
             }
-
+            applyRosterChanges( changes );
         }
-        return rosterItemsList;
     }
-    public synchronized void addRoster( Account account, Roster roster )
+    
+    // rosters being received item by item, by account, guarded by rosterLock
+    private Map<Account,RosterLoad> rosterLoads = new HashMap<Account, RosterLoad>();
+    
+    // the first chunk is small so that the list shows up at once, the next ones grow up to the maximum
+    private static final int FIRST_ROSTER_CHUNK_SIZE = 20;
+    private static final int MAX_ROSTER_CHUNK_SIZE = 200;
+    
+    private static class RosterLoad
+    {
+        private final Set<String> jids = new HashSet<String>();
+        // changes not published yet, contacts known to be online are published first
+        private List<RosterChange> onlineChanges = new ArrayList<RosterChange>();
+        private List<RosterChange> offlineChanges = new ArrayList<RosterChange>();
+        private int chunkSize = FIRST_ROSTER_CHUNK_SIZE;
+    }
+    
+    /**
+     * Starts a roster received item by item, see addRosterItem and endRoster.
+     * Items are published in chunks while they are received, so that the roster view fills up progressively.
+     */
+    public void beginRoster( Account account )
     {
-        rosterMap.put( account, roster );
-        broadcast( MESSAGE_TYPE_ROSTER_UPDATE );
+        synchronized( rosterLock )
+        {
+            rosterLoads.put( account, new RosterLoad() );
+        }
     }
-    public synchronized void removeRoster( Account account )
+    public void addRosterItem( Account account, RosterItem rosterItem )
     {
-        rosterMap.remove( account );
-        broadcast( MESSAGE_TYPE_ROSTER_UPDATE );
+        synchronized( rosterLock )
+        {
+            RosterLoad rosterLoad = rosterLoads.get( account );
+            if( rosterLoad == null ) return;
+            rosterLoad.jids.add( rosterItem.getJid() );
+            List<RosterChange> changes;
+            if( SUBSCRIPTION_REMOVE.equalsIgnoreCase( rosterItem.getSubscription() ) )
+                changes = rosterIndex.removeItem( account, rosterItem.getJid() );
+            else
+                changes = rosterIndex.putItem( account, rosterItem );
+            if( changes.isEmpty() ) return;
+            
+            if( getPresence( rosterItem.getJid() ) != null )
+            {
+                rosterLoad.onlineChanges.addAll( changes );
+                if( rosterLoad.onlineChanges.size() >= FIRST_ROSTER_CHUNK_SIZE ) publishRosterChunk( rosterLoad, false );
+            }
+            else
+            {
+                rosterLoad.offlineChanges.addAll( changes );
+            }
+            if( rosterLoad.onlineChanges.size() + rosterLoad.offlineChanges.size() >= rosterLoad.chunkSize ) publishRosterChunk( rosterLoad, true );
+        }
+    }
+    
+    private void publishRosterChunk( RosterLoad rosterLoad, boolean withOffline )
+    {
+        List<RosterChange> changes = rosterLoad.onlineChanges;
+        rosterLoad.onlineChanges = new ArrayList<RosterChange>();
+        if( withOffline )
+        {
+            changes.addAll( rosterLoad.offlineChanges );
+            rosterLoad.offlineChanges = new ArrayList<RosterChange>();
+            rosterLoad.chunkSize = Math.min( MAX_ROSTER_CHUNK_SIZE, rosterLoad.chunkSize * 2 );
+        }
+        applyRosterChanges( changes );
+    }
+    /**
+     * @param push when false, the items of the account which were not received are dropped
+     */
+    public void endRoster( Account account, boolean push )
+    {
+        synchronized( rosterLock )
+        {
+            RosterLoad rosterLoad = rosterLoads.remove( account );
+            if( rosterLoad == null ) return;
+            if( !push ) rosterLoad.offlineChanges.addAll( rosterIndex.retainItems( account, rosterLoad.jids ) );
+            publishRosterChunk( rosterLoad, true );
+        }
+    }
+    /**
+     * Keeps the items received so far, without dropping the others.
+     */
+    public void abortRoster( Account account )
+    {
+        synchronized( rosterLock )
+        {
+            RosterLoad rosterLoad = rosterLoads.remove( account );
+            if( rosterLoad != null ) publishRosterChunk( rosterLoad, true );
+        }
+    }
+    /**
+     * @return the changes of the merged roster
+     */
+    public List<RosterChange> removeRoster( Account account )
+    {
+        synchronized( rosterLock )
+        {
+            rosterLoads.remove( account );
+            List<RosterChange> changes = rosterIndex.remove( account );
+            applyRosterChanges( changes );
+            return changes;
+        }
+    }
+    
+    // called with rosterLock held, the merged roster is then updated on the main thread
+    private void applyRosterChanges( final List<RosterChange> changes )
+    {
+        if( changes.isEmpty() ) return;
+        rostersSnapshot = null;
+        handler.post( new Runnable()
+        {
+            public void run()
+            {
+                for( RosterChange change : changes )
+                {
+                    setRosterItem( change.jid, change.type == RosterChange.REMOVED ? null : change.rosterItem );
+                }
+                // one pass over the merged roster whatever the number of changes
+                rosterItemsList = Collections.unmodifiableList( RosterChange.apply( rosterItemsList, changes ) );
+                Set<String> jids = new HashSet<String>();
+                for( RosterChange change : changes ) jids.add( change.jid );
+                broadcast( MESSAGE_TYPE_ROSTER_UPDATE, jids );
+            }
+        } );
     }
     
     // ----------------------------------------------------------------------------
     // ----------------------------------------------------------------------------
-    private String getUserAndHostFromJID( final String jid )
+    // the per-contact state is indexed by the id of the contact in this table
+    private final JidTable jidTable = new JidTable();
+    
+    // readers do not lock, writers replace the state of a contact while holding the array
+    private final IdArray<ContactState> contactStates = new IdArray<ContactState>();
+    
+    /**
+     * @return what is known of the contact, read at once
+     */
+    public ContactState getContactState( String jid )
     {
-        int i = jid.indexOf( '/' );
-        if( i > 0 ) return jid.substring( 0, i );
-        return jid;
+        return getContactState( jidTable.find( jid ) );
+    }
+    private ContactState getContactState( int contact )
+    {
+        ContactState contactState = contactStates.get( contact );
+        if( contactState != null ) return contactState;
+        return ContactState.EMPTY;
+    }
+    
+    private void setRosterItem( String jid, RosterItem rosterItem )
+    {
+        int contact = jidTable.intern( jid );
+        synchronized( contactStates )
+        {
+            contactStates.set( contact, getContactState( contact ).withRosterItem( rosterItem ) );
+        }
     }
     
     
-    private Map<String,List<ChatMessage>> textMessageMap = Collections.synchronizedMap( new HashMap<String,List<ChatMessage>>() );
-    private Set<String> unconsumedMessageFroms = Collections.synchronizedSet( new HashSet<String>() ); 
+    private IdArray<MessageWindow> messageWindows = new IdArray<MessageWindow>();
+    // serializes the writers of the message windows, readers do not lock
+    private final Object textMessageWriteLock = new Object();
     
+    private ChatHistoryStore chatHistoryStore;
+    
+    /**
+     * @return a snapshot of the last messages of the conversation, null if there is none
+     */
     public List<ChatMessage> getTextMessageList( String fromUserAndHost )
     {
-        return textMessageMap.get( fromUserAndHost );
+        List<ChatMessage> textMessages = getMessageWindow( fromUserAndHost ).snapshot();
+        return textMessages.isEmpty() ? null : textMessages;
+    }
+    
+    /**
+     * Sets how many of the last messages of the conversation are kept in memory.
+     * @throws IllegalArgumentException if the capacity is not positive
+     */
+    public void setConversationCapacity( String userAndHost, int capacity )
+    {
+        if( capacity <= 0 ) throw new IllegalArgumentException( "Capacity must be positive: " + capacity );
+        int contact = jidTable.intern( userAndHost );
+        MessageWindow loadedWindow = getMessageWindow( userAndHost );
+        synchronized( textMessageWriteLock )
+        {
+            MessageWindow messageWindow = getCurrentMessageWindow( contact, loadedWindow );
+            if( messageWindow.getCapacity() != capacity )
+            {
+                MessageWindow resizedWindow = new MessageWindow( capacity );
+                for( ChatMessage message : messageWindow.snapshot() )
+                {
+                    if( message != null ) resizedWindow.add( message );
+                }
+                messageWindows.set( contact, resizedWindow );
+            }
+        }
+    }
+    
+    /**
+     * @return the stored messages of the conversation sent before the given one, oldest first
+     */
+    public List<ChatMessage> getEarlierTextMessages( String userAndHost, long beforeSeq, int count )
+    {
+        try
+        {
+            return chatHistoryStore.readPage( userAndHost, beforeSeq, count );
+        }
+        catch ( IOException e )
+        {
+            Log.w( TAG, e.getMessage(), e );
+            return new ArrayList<ChatMessage>();
+        }
+    }
+    
+    // the window holds the last messages, reloaded from the history store when missing, empty when there is none
+    private MessageWindow getMessageWindow( String userAndHost )
+    {
+        int contact = jidTable.intern( userAndHost );
+        MessageWindow messageWindow = messageWindows.get( contact );
+        if( messageWindow != null ) return messageWindow;
+        // read outside of the lock: the writers do not wait for the disk
+        List<ChatMessage> storedMessages = getEarlierTextMessages( userAndHost, Long.MAX_VALUE, DEFAULT_CONVERSATION_CAPACITY );
+        synchronized( textMessageWriteLock )
+        {
+            // a message is only added to a window, so none was stored since the read when there is still no window
+            messageWindow = messageWindows.get( contact );
+            if( messageWindow == null )
+            {
+                messageWindow = new MessageWindow( DEFAULT_CONVERSATION_CAPACITY );
+                for( ChatMessage message : storedMessages ) messageWindow.add( message );
+                messageWindows.set( contact, messageWindow );
+            }
+            return messageWindow;
+        }
+    }
+    
+    // with the write lock held: the window loaded before taking the lock, unless it was resized or removed since
+    private MessageWindow getCurrentMessageWindow( int contact, MessageWindow loadedWindow )
+    {
+        MessageWindow messageWindow = messageWindows.get( contact );
+        if( messageWindow != null ) return messageWindow;
+        messageWindows.set( contact, loadedWindow );
+        return loadedWindow;
     }
     
     public boolean hasMessageFrom( String fromUserAndHost )
     {
-        return unconsumedMessageFroms.contains( fromUserAndHost );
+        return getContactState( fromUserAndHost ).hasUnreadMessages();
     }
     public void markHasReadMessageFrom( String fromUserAndHost )
     {
@@ -184,8 +460,15 @@ public class TreeggerService
             lastNotificationUserAndHost = null;
         }
         
-        unconsumedMessageFroms.remove( fromUserAndHost );
-        broadcast( MESSAGE_TYPE_ROSTER_ADAPTER_UPDATE );
+        int contact = jidTable.find( fromUserAndHost );
+        if( contact != JidTable.NO_ID )
+        {
+            synchronized( contactStates )
+            {
+                contactStates.set( contact, getContactState( contact ).withMessagesRead() );
+            }
+        }
+        broadcast( MESSAGE_TYPE_ROSTER_ADAPTER_UPDATE, fromUserAndHost );
     }
     
     private String unXML( String s )
@@ -201,123 +484,80 @@ public class TreeggerService
         if( message != null && message.text != null && message.text.length() > 0 )
         {
             message.text = unXML( message.text );
-            List<ChatMessage> messagesList = textMessageMap.get( targetChatJID );
-            if( messagesList == null )
-            {
-                messagesList = Collections.synchronizedList( new ArrayList<ChatMessage>() );
-                textMessageMap.put( targetChatJID, messagesList );
-            }
-            else
+            int contact = jidTable.intern( targetChatJID );
+            MessageWindow loadedWindow = getMessageWindow( targetChatJID );
+            synchronized( textMessageWriteLock )
             {
-                if( messagesList.size() > MAX_MESSAGESLIST_SIZE )
+                try
                 {
-                    messagesList.remove( 0 );
+                    chatHistoryStore.append( targetChatJID, message );
                 }
+                catch ( IOException e )
+                {
+                    Log.w( TAG, e.getMessage(), e );
+                }
+                getCurrentMessageWindow( contact, loadedWindow ).add( message );
             }
-            messagesList.add( message );
-            if( !localMessage )
+            synchronized( contactStates )
             {
-                unconsumedMessageFroms.add( message.userAndHost );
-                messageNotification( message );
+                contactStates.set( contact, getContactState( contact ).withMessage( message, !localMessage ) );
             }
-            broadcast( MESSAGE_TYPE_TEXTMESSAGE_UPDATE );
+            if( !localMessage ) messageNotification( message );
+            broadcast( MESSAGE_TYPE_TEXTMESSAGE_UPDATE, targetChatJID );
         }
     }
     
     
     
-    private Map<String,Boolean> messageComposingMap = Collections.synchronizedMap( new HashMap<String,Boolean>() ); 
-
     public void addTextMessage( Account account, TextMessage textMessage )
     {
-        String fromUserAndHost = getUserAndHostFromJID( textMessage.getFromUser() );
+        int contact = jidTable.intern( textMessage.getFromUser() );
+        String fromUserAndHost = jidTable.get( contact );
         RosterItem rosterItem = findRosterItemByJID( fromUserAndHost );
         if( rosterItem != null )
         {
             if( textMessage.hasBody() )
             {
+                boolean composing = getContactState( contact ).composing;
                 addTextMessage( fromUserAndHost, new ChatMessage( fromUserAndHost, textMessage.getBody() ), false );
-                Boolean value = messageComposingMap.remove( fromUserAndHost );
-                if( value != null ) broadcast( MESSAGE_TYPE_COMPOSING );
+                if( composing ) broadcast( MESSAGE_TYPE_COMPOSING, fromUserAndHost );
             }
             else
             {
-                if( textMessage.hasComposing() && textMessage.getComposing() )
+                synchronized( contactStates )
                 {
-                    messageComposingMap.put(  fromUserAndHost, true );
+                    contactStates.set( contact, getContactState( contact ).withComposing( textMessage.hasComposing() && textMessage.getComposing() ) );
                 }
-                else
-                {
-                    messageComposingMap.remove( fromUserAndHost );
-                }
-                broadcast( MESSAGE_TYPE_COMPOSING );
+                broadcast( MESSAGE_TYPE_COMPOSING, fromUserAndHost );
             }
         }
     }
     public boolean isComposing( String jid )
     {
-        Boolean composing = messageComposingMap.get( jid );
-        if( composing == null ) return false;
-        return composing;
+        return getContactState( jid ).composing;
     }
 
 
     // ----------------------------------------------------------------------------
     // ----------------------------------------------------------------------------
-    private Map<String,List<Presence>> presenceMap = new HashMap<String,List<Presence>>(); 
+    private PresenceTable presenceTable = new PresenceTable(); 
     
-    public synchronized void addPresence( Account account, Presence presence )
+    public void addPresence( Account account, Presence presence )
     {
-        String userAndHost = getUserAndHostFromJID( presence.getFrom() );
-        messageComposingMap.remove( userAndHost );
-        
-        List<Presence> presences = presenceMap.get( userAndHost );
-        if( presences == null )
+        int contact = jidTable.intern( presence.getFrom() );
+        String userAndHost = jidTable.get( contact );
+        synchronized( contactStates )
         {
-            presences = new ArrayList<Presence>();
-            presenceMap.put( userAndHost, presences );
-        }
-        
-        Iterator<Presence> iter = presences.iterator();
-        while( iter.hasNext() )
-        {
-            if( iter.next().getFrom().equals( presence.getFrom() ) ) iter.remove();
+            // the best presence is resolved under the same lock, so that states are published in the order of the presences
+            Presence bestPresence = presenceTable.put( contact, presence );
+            contactStates.set( contact, getContactState( contact ).withPresence( bestPresence ) );
         }
-
-        String presenceType = presence.getType();
-        if( presenceType != null && !presenceType.equalsIgnoreCase( "unavailable" ) )
-        {
-            presences.add( presence );
-        }
-        broadcast( MESSAGE_TYPE_PRESENCE_UPDATE );
+        broadcast( MESSAGE_TYPE_PRESENCE_UPDATE, userAndHost );
 
     }
-    public synchronized Presence getPresence( String jid )
+    public Presence getPresence( String jid )
     {
-        List<Presence> presences = presenceMap.get( jid );
-        if( presences != null )
-        {
-            for( Presence presence : presences )
-            {
-                if( ( presence.getType() == null ||  presence.getType().length() == 0 ) 
-                    && ( presence.getShow() == null ||  presence.getShow().length() == 0 ) )
-                {
-                    return presence;
-                }
-            }
-            for( Presence presence : presences )
-            {
-                if( presence.getShow() == null ||  presence.getShow().length() > 0 )
-                {
-                    return presence;
-                }
-            }
-            for( Presence presence : presences )
-            {
-                return presence;
-            }
-        }
-        return null;
+        return getContactState( jid ).presence;
     }
     
     private int currentSelectedPresence = TreeggerWebSocketManager.PRESENCE_AVAILABLE;
@@ -343,11 +583,35 @@ public class TreeggerService
     
     // ----------------------------------------------------------------------------
     // ----------------------------------------------------------------------------
+    private EventDispatcher eventDispatcher;
+    
     final private void broadcast( final int type )
     {
-        Intent broadCastIntent = new Intent( TREEGGER_BROADCAST_ACTION );
-        broadCastIntent.putExtra( EXTRA_MESSAGE_TYPE, type );
-        sendBroadcast( broadCastIntent );
+        eventDispatcher.dispatch( type );
+    }
+    final private void broadcast( final int type, String jid )
+    {
+        eventDispatcher.post( type, jid );
+    }
+    final private void broadcast( final int type, Set<String> jids )
+    {
+        eventDispatcher.post( type, jids );
+    }
+    
+    /**
+     * In-process delivery of the service events, replacing the system broadcasts while a listener is registered.
+     */
+    public void addListener( EventDispatcher.Listener listener )
+    {
+        eventDispatcher.addListener( listener );
+    }
+    public void removeListener( EventDispatcher.Listener listener )
+    {
+        eventDispatcher.removeListener( listener );
+    }
+    public void setEventCoalescingWindow( long coalescingWindow )
+    {
+        eventDispatcher.setCoalescingWindow( coalescingWindow );
     }
     
 
@@ -374,9 +638,13 @@ public class TreeggerService
     {
         super.onCreate();
         
+        keepAlivePolicy = new KeepAlivePolicy( keepAliveStore );
         registerReceiver( receiver, new IntentFilter( ConnectivityManager.CONNECTIVITY_ACTION ) );
 
         handler = new Handler();
+        eventDispatcher = new EventDispatcher( this, handler );
+        scheduler = new Scheduler();
+        chatHistoryStore = new ChatHistoryStore( new File( getFilesDir(), "history" ) );
         accountStorage = new AccountStorage( this );
         connect();
     }
@@ -441,6 +709,9 @@ public class TreeggerService
     {
         disconnect();
         cleanup();
+        eventDispatcher.clear();
+        scheduler.shutdown();
+        chatHistoryStore.close();
         unregisterReceiver( receiver );
     }
 
@@ -470,43 +741,37 @@ public class TreeggerService
     
     public void cleanup()
     {
-        messageComposingMap.clear();
-        presenceMap.clear();
-        rosterMap.clear();
-        rosterItemsList.clear();
-        vcards.clear();
-        textMessageMap.clear();
+        contactStates.clear();
+        presenceTable.clear();
+        synchronized( rosterLock )
+        {
+            rosterIndex.clear();
+            rosterLoads.clear();
+            rostersSnapshot = null;
+        }
+        rosterItemsList = Collections.emptyList();
+        messageWindows.clear();
+        chatHistoryStore.close();
         connectionMap.clear();
     }
     // ----------------------------------------------------------------------------
     // ----------------------------------------------------------------------------
     private Account findAccountByJID( String jid )
     {
-        for( Map.Entry<Account, Roster> entry : getRosters().entrySet() )
-        {
-            for( RosterItem rosterItem : entry.getValue().getItemList() )
-            {
-                if( rosterItem.getJid().equals( jid ) )
-                {
-                    return entry.getKey();
-                }
-            }
-        }
+        RosterIndex.Entry entry = rosterIndex.get( jid );
+        if( entry != null ) return entry.account;
         return null;
     }
 
+    public RosterItem getRosterItem( String jid )
+    {
+        return findRosterItemByJID( jid );
+    }
+
     private RosterItem findRosterItemByJID( String jid )
     {
-        for( Map.Entry<Account, Roster> entry : getRosters().entrySet() )
-        {
-            for( RosterItem rosterItem : entry.getValue().getItemList() )
-            {
-                if( rosterItem.getJid().equals( jid ) )
-                {
-                    return rosterItem;
-                }
-            }
-        }
+        RosterIndex.Entry entry = rosterIndex.get( jid );
+        if( entry != null ) return entry.rosterItem;
         return null;
     }
     
@@ -536,9 +801,97 @@ public class TreeggerService
         if( account != null )
         {
             TreeggerWebSocketManager webSocketManager = connectionMap.get( account );
-            webSocketManager.sendStateNotificationMessage( to, composing, paused, active, gone );
+            // chat states are optional, do not add to a congested connection
+            if( !webSocketManager.isOutboundCongested() )
+                webSocketManager.sendStateNotificationMessage( to, composing, paused, active, gone );
         }
     }
+    
+    /**
+     * Connection progress of the account, one of the TreeggerWebSocketManager.READINESS_ values.
+     */
+    public int getReadiness( Account account )
+    {
+        TreeggerWebSocketManager webSocketManager = connectionMap.get( account );
+        return webSocketManager != null ? webSocketManager.getReadiness() : TreeggerWebSocketManager.READINESS_OFFLINE;
+    }
+    
+    /**
+     * True when every account is authenticated and has its roster.
+     */
+    public boolean isReady()
+    {
+        for( TreeggerWebSocketManager webSocketManager : connectionMap.values() )
+        {
+            if( webSocketManager.getReadiness() != TreeggerWebSocketManager.READINESS_READY ) return false;
+        }
+        return true;
+    }
+    
+    /**
+     * Milliseconds from the start of the connection of the account to its first roster, -1 until then.
+     */
+    public long getTimeToReady( Account account )
+    {
+        TreeggerWebSocketManager webSocketManager = connectionMap.get( account );
+        return webSocketManager != null ? webSocketManager.getTimeToReady() : -1;
+    }
+    
+    /**
+     * @return null when the account has no connection
+     */
+    public ConnectionMetrics getConnectionMetrics( Account account )
+    {
+        TreeggerWebSocketManager webSocketManager = connectionMap.get( account );
+        return webSocketManager != null ? webSocketManager.getMetrics() : null;
+    }
+    
+    /**
+     * The timers of the service and its activities: keepalive, reconnections, chat state timeouts.
+     */
+    public Scheduler getScheduler()
+    {
+        return scheduler;
+    }
+    
+    /**
+     * Number of messages waiting to be written on every connection.
+     */
+    public int getOutboundQueueDepth()
+    {
+        int depth = 0;
+        for( TreeggerWebSocketManager webSocketManager : connectionMap.values() )
+        {
+            depth += webSocketManager.getOutboundQueueDepth();
+        }
+        return depth;
+    }
+    
+    /**
+     * Reconnections of every connection which bound their session again, without authentication.
+     */
+    public long getFastPathReconnects()
+    {
+        long count = 0;
+        for( TreeggerWebSocketManager webSocketManager : connectionMap.values() )
+        {
+            count += webSocketManager.getFastPathReconnects();
+        }
+        return count;
+    }
+    
+    /**
+     * Reconnections of every connection which went through a full authentication.
+     */
+    public long getSlowPathReconnects()
+    {
+        long count = 0;
+        for( TreeggerWebSocketManager webSocketManager : connectionMap.values() )
+        {
+            count += webSocketManager.getSlowPathReconnects();
+        }
+        return count;
+    }
 
     
     // ----------------------------------------------------------------------------
@@ -573,7 +926,21 @@ public class TreeggerService
     {
         accountStorage.removeAccount( account );
         TreeggerWebSocketManager webSocketManager = connectionMap.remove( account );
-        removeRoster( account );
+        // the conversations with the contacts left in no other account are forgotten
+        for( RosterChange change : removeRoster( account ) )
+        {
+            if( change.type != RosterChange.REMOVED ) continue;
+            int contact = jidTable.find( change.jid );
+            if( contact != JidTable.NO_ID ) messageWindows.remove( contact );
+            try
+            {
+                chatHistoryStore.delete( change.jid );
+            }
+            catch ( IOException e )
+            {
+                Log.w( TAG, e.getMessage(), e );
+            }
+        }
         webSocketManager.disconnect();
     }
     
@@ -602,7 +969,14 @@ public class TreeggerService
     }
     public void onPaused()
     {
-        messageComposingMap.clear();
+        synchronized( contactStates )
+        {
+            for( int contact = 0; contact < jidTable.size(); contact++ )
+            {
+                ContactState contactState = contactStates.get( contact );
+                if( contactState != null ) contactStates.set( contact, contactState.withComposing( false ) );
+            }
+        }
         broadcast( MESSAGE_TYPE_PAUSED );
         //handler.post( new DisplayToastRunnable( this, "Pause connection" ) );
     }
@@ -610,20 +984,32 @@ public class TreeggerService
     {
         broadcast( MESSAGE_TYPE_DISCONNECTED );
     }
+    public void onAccountReady( Account account )
+    {
+        broadcast( MESSAGE_TYPE_ACCOUNT_READY );
+    }
     public void onSignOut()
     {
         NotificationManager notificationManager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
         notificationManager.cancelAll();
         cleanup();
+        chatHistoryStore.deleteAll();
         stopSelf();
         System.exit( 0 );
     }
     
-    public Map<String, VCardResponse> vcards = Collections.synchronizedMap( new HashMap<String, VCardResponse>() );
     public void onVCard( VCardResponse vcard )
     {
-        vcards.put( vcard.getFromUser(), vcard );
-        broadcast( MESSAGE_TYPE_VCARD_UPDATE );
+        int contact = jidTable.intern( vcard.getFromUser() );
+        synchronized( contactStates )
+        {
+            contactStates.set( contact, getContactState( contact ).withVCard( vcard ) );
+        }
+        broadcast( MESSAGE_TYPE_VCARD_UPDATE, vcard.getFromUser() );
+    }
+    public VCardResponse getVCard( String jid )
+    {
+        return getContactState( jid ).vcard;
     }
 
     
@@ -655,7 +1041,7 @@ public class TreeggerService
 
             PendingIntent contentIntent = PendingIntent.getActivity( this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT );
             
-            VCardResponse vcard = vcards.get( chatMessage.userAndHost );
+            VCardResponse vcard = getVCard( chatMessage.userAndHost );
             notification.setLatestEventInfo(this, vcard.getFn(), chatMessage.text, contentIntent);
             notification.defaults |= Notification.DEFAULT_SOUND;
 
@@ -1,21 +1,22 @@
 package com.treegger.android.imonair.service;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.Queue;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.util.Log;
 
 import com.treegger.protobuf.WebSocketProto.AuthenticateRequest;
 import com.treegger.protobuf.WebSocketProto.AuthenticateResponse;
+import com.treegger.protobuf.WebSocketProto.BindRequest;
 import com.treegger.protobuf.WebSocketProto.BindResponse;
 import com.treegger.protobuf.WebSocketProto.Ping;
-import com.treegger.protobuf.WebSocketProto.Presence;
-import com.treegger.protobuf.WebSocketProto.TextMessage;
+import com.treegger.protobuf.WebSocketProto.Roster;
+import com.treegger.protobuf.WebSocketProto.RosterItem;
 import com.treegger.protobuf.WebSocketProto.WebSocketMessage;
 import com.treegger.websocket.WSConnector;
 import com.treegger.websocket.WSConnector.WSEventHandler;
@@ -24,9 +25,13 @@ public class TreeggerWebSocketManager implements WSEventHandler
 {
     public static final String TAG = "WSHandler";
      
-    public static final long PING_DELAY = 30*1000;
+    // period of the keepalive checks, the keepalive interval itself is learned by the KeepAlivePolicy
+    public static final long PING_DELAY = KeepAlivePolicy.MIN_INTERVAL;
 
-    private Integer pingId = 0;
+    private int pingId = 0;
+    // pings without pong after that long are missed
+    private static final long PONG_TIMEOUT = 20*1000;
+    public static final int MAX_MISSED_PONGS = 2;
     
     private String sessionId;
     
@@ -34,8 +39,11 @@ public class TreeggerWebSocketManager implements WSEventHandler
     private WSConnector wsConnector;
     private Account account;
     
-    private Timer timer;
     private long lastActivity = 0;
+    // last frame sent or received, whatever it is
+    private volatile long lastTraffic = 0;
+    // silence before the last keepalive, confirmed if the connection is still up at the next check
+    private volatile long pendingProbe = 0;
     
     public static final String DEFAULT_RESOURCE = "AndroidIMonAir";
     
@@ -45,23 +53,20 @@ public class TreeggerWebSocketManager implements WSEventHandler
     private String fromJID;
     private String currentResource;
     
-    public static final int STATE_DISCONNECTED = 0;
-    public static final int STATE_CONNECTING = 1;
-    public static final int STATE_CONNECTED = 2;
-    public static final int STATE_PAUSED = 3;
-    public static final int STATE_DISCONNECTING = 4;
-    public static final int STATE_PAUSING = 5;
-    public static final int STATE_SIGNINGDOUT = 6;
-    
-    private static final int TRANSITION_CONNECT = 1;
-    private static final int TRANSITION_CONNECTED = 2;
-    private static final int TRANSITION_PAUSE = 3;
-    private static final int TRANSITION_PAUSED = 31;
-    private static final int TRANSITION_RECONNECT = 4;
-    private static final int TRANSITION_DISCONNECT = 5;
-    private static final int TRANSITION_DISCONNECTED = 51;
-    private static final int TRANSITION_RESUME = 6;
-    private static final int TRANSITION_SIGNOUT = 7;
+    public static final int STATE_DISCONNECTED = ConnectionStateMachine.STATE_DISCONNECTED;
+    public static final int STATE_CONNECTING = ConnectionStateMachine.STATE_CONNECTING;
+    public static final int STATE_CONNECTED = ConnectionStateMachine.STATE_CONNECTED;
+    public static final int STATE_PAUSED = ConnectionStateMachine.STATE_PAUSED;
+    public static final int STATE_DISCONNECTING = ConnectionStateMachine.STATE_DISCONNECTING;
+    public static final int STATE_PAUSING = ConnectionStateMachine.STATE_PAUSING;
+    public static final int STATE_SIGNINGDOUT = ConnectionStateMachine.STATE_SIGNINGDOUT;
+    
+    public static final int READINESS_OFFLINE = 0;
+    public static final int READINESS_CONNECTING = 1;
+    public static final int READINESS_AUTHENTICATING = 2;
+    public static final int READINESS_AUTHENTICATED = 3;
+    // authenticated with the roster received
+    public static final int READINESS_READY = 4;
     
     public static final int PRESENCE_AVAILABLE = 1;
     public static final int PRESENCE_AWAY = 2;
@@ -69,177 +74,84 @@ public class TreeggerWebSocketManager implements WSEventHandler
 
     private int currentSelectedPresence = PRESENCE_AVAILABLE;
     
-    private static final Lock LOCK =  new ReentrantLock();
-
-    private int connectionState = STATE_DISCONNECTED;
+    // side effects of the transitions run one at a time, in the order of the transitions
+    private final ConnectionStateMachine stateMachine = new ConnectionStateMachine( new SerialExecutor(), new ConnectionStateMachine.ActionHandler()
+    {
+        public void perform( int action, int from, int to )
+        {
+            TreeggerWebSocketManager.this.perform( action );
+        }
+    } );
     
     public int getState()
     {
-        return connectionState;
+        return stateMachine.getState();
     }
     
-    private void applyTransition( int transition )
+    /**
+     * Never blocks: see ConnectionStateMachine.
+     * @return false when the transition does not apply to the current state
+     */
+    private boolean applyTransition( int transition )
     {
-        try
-        {
-            LOCK.lockInterruptibly();
-            switch( transition )
-            {
-                case TRANSITION_CONNECT:
-                    if( connectionState == STATE_DISCONNECTED || connectionState == STATE_DISCONNECTING || connectionState == STATE_DISCONNECTED 
-                        || connectionState == STATE_PAUSED || connectionState == STATE_PAUSING )
-                    {
-                        connectionState = STATE_CONNECTING;
-                        LOCK.unlock();
-                        doConnect();
-                    }
-                    else
-                    {
-                        LOCK.unlock();
-                    }
-                    break;
-                case TRANSITION_CONNECTED:
-                    if( connectionState == STATE_CONNECTING )
-                    {
-                        connectionState = STATE_CONNECTED;
-                        LOCK.unlock();
-                        doConnected();
-                    }
-                    else
-                    {
-                        LOCK.unlock();
-                    }
-                    break;
-                case TRANSITION_PAUSE:
-                    if( connectionState == STATE_CONNECTED )
-                    {
-                        connectionState = STATE_PAUSING;
-                        LOCK.unlock();
-                        doPause();
-                    }
-                    else
-                    {
-                        LOCK.unlock();
-                    }
-                    break;
-                    
-                case TRANSITION_PAUSED:
-                    if( connectionState == STATE_PAUSING )
-                    {
-                        connectionState = STATE_PAUSED;
-                        LOCK.unlock();
-                        doPaused();
-                    }
-                    else
-                    {
-                        LOCK.unlock();
-                    }
-                    break;
-                    
-                    
-                case TRANSITION_RECONNECT:
-                    if( connectionState == STATE_DISCONNECTED || connectionState == TRANSITION_DISCONNECT )
-                    {
-                        connectionState = STATE_CONNECTING;
-                        LOCK.unlock();
-                        doConnect();
-                    }
-                    else if( connectionState == STATE_CONNECTING )
-                    {
-                        connectionState = STATE_CONNECTING;
-                        LOCK.unlock();
-                        treeggerService.onConnectingFinished();
-                        doReconnect();
-                    }
-                    else if( connectionState == STATE_CONNECTED )
-                    {
-                        connectionState = STATE_CONNECTING;
-                        LOCK.unlock();
-                        doReconnect();
-                    }
-                    else if( connectionState == STATE_PAUSED || connectionState == STATE_PAUSING )
-                    {
-                        connectionState = STATE_CONNECTING;
-                        LOCK.unlock();
-                        doResume();                    
-                    }
-                    else
-                    {
-                        LOCK.unlock();
-                    }
-                    break;
-                case TRANSITION_DISCONNECT:
-                    if( connectionState == STATE_CONNECTING )
-                    {
-                        connectionState = STATE_DISCONNECTING;
-                        LOCK.unlock();
-                        treeggerService.onConnectingFinished();
-                        doDisconnect();
-                    }
-                    else if( connectionState == STATE_PAUSED || connectionState == STATE_CONNECTED )
-                    {
-                        connectionState = STATE_DISCONNECTING;
-                        LOCK.unlock();
-                        doDisconnect();
-                    }
-                    else
-                    {
-                        LOCK.unlock();
-                    }
-                    break;
-                case TRANSITION_DISCONNECTED:
-                    if( connectionState == STATE_DISCONNECTING )
-                    {
-                        connectionState = STATE_DISCONNECTED;
-                        LOCK.unlock();
-                        doDisconnected();
-                    }
-                    else
-                    {
-                        LOCK.unlock();
-                    }
-                    break;
-                    
-                case TRANSITION_RESUME:
-                    if( connectionState == STATE_PAUSED )
-                    {
-                        connectionState = STATE_CONNECTING;
-                        LOCK.unlock();
-                        doResume();                    
-                    }
-                    else
-                    {
-                        LOCK.unlock();
-                    }
-                    break;
-                case TRANSITION_SIGNOUT:
-                    if( !signout && ( connectionState == STATE_PAUSED || connectionState == STATE_PAUSING ) )
-                    {
-                        connectionState = STATE_CONNECTING;
-                        signout = true;
-                        LOCK.unlock();
-                        doResume();       
-                    }
-                    else
-                    {
-                        connectionState = STATE_SIGNINGDOUT;
-                        LOCK.unlock();
-                        doSignOut();                    
-                    }
-                    break;
-                default:
-                   LOCK.unlock();
-            }
-        }
-        catch (Exception e)
+        return stateMachine.apply( transition );
+    }
+    
+    private void perform( int action )
+    {
+        switch( action )
         {
-            Log.e( TAG, e.getMessage(), e );
+            case ConnectionStateMachine.ACTION_CONNECT:
+                doConnect();
+                break;
+            case ConnectionStateMachine.ACTION_CONNECTED:
+                doConnected();
+                break;
+            case ConnectionStateMachine.ACTION_PAUSE:
+                doPause();
+                break;
+            case ConnectionStateMachine.ACTION_PAUSED:
+                doPaused();
+                break;
+            case ConnectionStateMachine.ACTION_RECONNECT:
+                doReconnect();
+                break;
+            case ConnectionStateMachine.ACTION_RESTART_CONNECTING:
+                treeggerService.onConnectingFinished();
+                doReconnect();
+                break;
+            case ConnectionStateMachine.ACTION_RESUME:
+                doResume();
+                break;
+            case ConnectionStateMachine.ACTION_DISCONNECT:
+                doDisconnect();
+                break;
+            case ConnectionStateMachine.ACTION_ABORT_CONNECTING:
+                treeggerService.onConnectingFinished();
+                doDisconnect();
+                break;
+            case ConnectionStateMachine.ACTION_DISCONNECTED:
+                doDisconnected();
+                break;
+            case ConnectionStateMachine.ACTION_SIGNOUT:
+                doSignOut();
+                break;
+            case ConnectionStateMachine.ACTION_RESUME_TO_SIGNOUT:
+                signout = true;
+                doResume();
+                break;
+            case ConnectionStateMachine.ACTION_CONNECTION_LOST:
+                doConnectionLost();
+                break;
         }
     }
     
     private void doConnect()
     {
+        // an attempt made before the scheduled one replaces it
+        cancelScheduledReconnect();
         lastActivity = System.currentTimeMillis();
+        setReadiness( READINESS_CONNECTING );
         treeggerService.onConnecting();
         try
         {
@@ -247,20 +159,26 @@ public class TreeggerWebSocketManager implements WSEventHandler
         }
         catch ( IOException e )
         {
+            // offline or unreachable: back off instead of staying in STATE_CONNECTING
             Log.v(TAG, e.getMessage(), e );
+            connectionLost();
         }
     }
     private void doConnected()
     {
-        if( timer == null )
+        pendingPings.clear();
+        missedPongs = 0;
+        if( !treeggerService.scheduler.isScheduled( pingKey ) )
         {
-            timer = new Timer();
-            timer.schedule( new PingTask(), PING_DELAY, PING_DELAY );
+            treeggerService.scheduler.schedulePeriodic( pingKey, pingTask, PING_DELAY, PING_DELAY );
         }
 
         treeggerService.onConnectingFinished();
+        setReadiness( READINESS_AUTHENTICATING );
         treeggerService.onAuthenticating();
-        authenticate( account.name, account.socialnetwork, account.password );
+        // a session kept by the server is bound again without authentication nor roster download
+        if( hasSession() ) bind();
+        else authenticate( account.name, account.socialnetwork, account.password );
     }
     private void doPause()
     {
@@ -272,16 +190,18 @@ public class TreeggerWebSocketManager implements WSEventHandler
         {
             Log.v(TAG, e.getMessage(), e );
         }
-        applyTransition( TRANSITION_PAUSED );
+        applyTransition( ConnectionStateMachine.TRANSITION_PAUSED );
     }
     private void doPaused()
     {
+        setReadiness( READINESS_OFFLINE );
         treeggerService.onPaused();
     }
 
     private void doResume()
     {
         //treeggerService.handler.post( new DisplayToastRunnable( treeggerService, "Resume connection " + account.name + "@"+account.socialnetwork ) );
+        setReadiness( READINESS_CONNECTING );
         try
         {
            if( wsConnector != null ) wsConnector.connect( "wss", "xmpp.treegger.com", 443, "/tg-1.0", true, this );
@@ -289,6 +209,9 @@ public class TreeggerWebSocketManager implements WSEventHandler
         catch ( IOException e )
         {
             Log.v(TAG, "Resume failed");
+            // a sign out does not wait for the network to come back
+            if( signout ) signOut();
+            else connectionLost();
         }
     }
     private void doReconnect()
@@ -301,28 +224,45 @@ public class TreeggerWebSocketManager implements WSEventHandler
     {
         try
         {
-            if( timer != null ) timer.cancel();
-            timer = null;
+            cancelScheduledReconnect();
+            treeggerService.scheduler.cancel( pingKey );
             if( wsConnector != null ) wsConnector.close();
         }
         catch ( IOException e )
         {
             Log.v(TAG, e.getMessage(), e );
         }
-        applyTransition( TRANSITION_DISCONNECTED );
+        applyTransition( ConnectionStateMachine.TRANSITION_DISCONNECTED );
         
     }
     private void doDisconnected()
     {
+        setReadiness( READINESS_OFFLINE );
         treeggerService.onDisconnected();
     }
+    // unlike doDisconnect, keeps the scheduled reconnection
+    private void doConnectionLost()
+    {
+        if( readiness == READINESS_CONNECTING ) treeggerService.onConnectingFinished();
+        try
+        {
+            treeggerService.scheduler.cancel( pingKey );
+            if( wsConnector != null ) wsConnector.close();
+        }
+        catch ( IOException e )
+        {
+            Log.v(TAG, e.getMessage(), e );
+        }
+        doDisconnected();
+    }
     private void doSignOut()
     {
         try
         {
+            cancelScheduledReconnect();
             sendPresence( "unavailable", "", "" );
-            if( timer != null ) timer.cancel();
-            timer = null;
+            treeggerService.scheduler.cancel( pingKey );
+            outboundWriter.awaitEmpty( 1000 );
             Thread.sleep( 1000 ); // seems to need a little time to send data before closing & exit
             if( wsConnector != null ) wsConnector.close();
         }
@@ -337,40 +277,124 @@ public class TreeggerWebSocketManager implements WSEventHandler
     }
     
     
+    // ----------------------------------------------------------------------------
+    // ----------------------------------------------------------------------------
+    private final long createdAt = System.currentTimeMillis();
+    private volatile int readiness = READINESS_OFFLINE;
+    private volatile boolean rosterReceived = false;
+    private volatile long timeToReady = -1;
+    
+    /**
+     * Progress of the connection, from READINESS_OFFLINE to READINESS_READY.
+     */
+    public int getReadiness()
+    {
+        return readiness;
+    }
+    
+    /**
+     * Milliseconds from the creation of the connection to its first roster, -1 until then.
+     */
+    public long getTimeToReady()
+    {
+        return timeToReady;
+    }
+    
+    private void setReadiness( int readiness )
+    {
+        // after a resume, the roster received earlier is still valid
+        if( readiness == READINESS_AUTHENTICATED && rosterReceived ) readiness = READINESS_READY;
+        this.readiness = readiness;
+        if( readiness == READINESS_READY && timeToReady < 0 )
+        {
+            timeToReady = System.currentTimeMillis() - createdAt;
+            treeggerService.onAccountReady( account );
+        }
+    }
+    
+    
     public TreeggerWebSocketManager( TreeggerService treeggerService, Account account )
     {
         this.treeggerService = treeggerService;
         this.account = account;
         
         this.wsConnector = new WSConnector();
+        this.outbox = new Outbox( new File( treeggerService.getFilesDir(), "outbox-" + account.id ) );
         connect();
     }
 
     public void connect()
     {
-        applyTransition( TRANSITION_CONNECT );
+        applyTransition( ConnectionStateMachine.TRANSITION_CONNECT );
     }
     private void pause()
     {
-        applyTransition( TRANSITION_PAUSE );
+        applyTransition( ConnectionStateMachine.TRANSITION_PAUSE );
     }
     
     public void disconnect()
     {
-        applyTransition( TRANSITION_DISCONNECT );
+        applyTransition( ConnectionStateMachine.TRANSITION_DISCONNECT );
     }
     
     public void reconnect()
     {
-        applyTransition( TRANSITION_RECONNECT );
+        applyTransition( ConnectionStateMachine.TRANSITION_RECONNECT );
+    }
+    
+    /**
+     * A single attempt right away, for instance when the network changed, replacing any scheduled one.
+     * The backoff goes on from where it was if this attempt fails.
+     */
+    public void reconnectNow()
+    {
+        cancelScheduledReconnect();
+        reconnect();
     }
+    
+    // ----------------------------------------------------------------------------
+    // ----------------------------------------------------------------------------
+    private final ReconnectScheduler reconnectScheduler = new ReconnectScheduler();
+    
+    private final Object reconnectKey = new Object();
+    
+    private final Runnable reconnectTask = new Runnable()
+    {
+        public void run()
+        {
+            reconnect();
+        }
+    };
+    
+    /**
+     * Moves to STATE_DISCONNECTED then schedules a reconnection with backoff, unless the connection was not up
+     * or being opened: it is then closed on purpose, paused or signing out.
+     */
+    private void connectionLost()
+    {
+        if( !signout && applyTransition( ConnectionStateMachine.TRANSITION_CONNECTION_LOST ) ) scheduleReconnect();
+    }
+    
+    private void scheduleReconnect()
+    {
+        reconnectScheduler.onDisconnected( System.currentTimeMillis() );
+        long delay = reconnectScheduler.nextDelay();
+        Log.v( TAG, "Reconnecting " + account.name + "@" + account.socialnetwork + " in " + delay + "ms" );
+        treeggerService.scheduler.schedule( reconnectKey, reconnectTask, delay );
+    }
+    
+    private void cancelScheduledReconnect()
+    {
+        treeggerService.scheduler.cancel( reconnectKey );
+    }
+    
     private void resume()
     {
-        applyTransition( TRANSITION_RESUME );
+        applyTransition( ConnectionStateMachine.TRANSITION_RESUME );
     }
     public void signOut()
     {
-        applyTransition( TRANSITION_SIGNOUT );
+        applyTransition( signout ? ConnectionStateMachine.TRANSITION_SIGNOUT_NOW : ConnectionStateMachine.TRANSITION_SIGNOUT );
     }
     
     
@@ -393,10 +417,20 @@ public class TreeggerWebSocketManager implements WSEventHandler
         
         authReq.setResource( currentResource );            
         this.fromJID = username+"/"+currentResource;
+        frameEncoder.setFromJID( fromJID );
         message.setAuthenticateRequest( authReq );
         sendWebSocketMessage( message );
     }
     
+    private void bind()
+    {
+        WebSocketMessage.Builder message = WebSocketMessage.newBuilder();
+        BindRequest.Builder bindReq = BindRequest.newBuilder();
+        bindReq.setSessionId( sessionId );
+        message.setBindRequest( bindReq );
+        sendWebSocketMessage( message );
+    }
+    
     
     
 
@@ -405,15 +439,7 @@ public class TreeggerWebSocketManager implements WSEventHandler
         if( authenticated )
         {
             lastActivity = System.currentTimeMillis();
-    
-            WebSocketMessage.Builder message = WebSocketMessage.newBuilder();
-            Presence.Builder presence = Presence.newBuilder();
-            presence.setType( type );
-            presence.setShow( show );
-            presence.setStatus( status );
-            presence.setFrom( fromJID );
-            message.setPresence( presence );
-            sendWebSocketMessage( message );
+            sendFrame( frameEncoder.encodePresence( type, show, status ), "presence", false );
         }
     }
 
@@ -424,14 +450,8 @@ public class TreeggerWebSocketManager implements WSEventHandler
             wakeup();
             
             lastActivity = System.currentTimeMillis();
-    
-            WebSocketMessage.Builder message = WebSocketMessage.newBuilder();
-            TextMessage.Builder textMessage = TextMessage.newBuilder();
-            textMessage.setBody( text );
-            textMessage.setToUser( to );
-            textMessage.setFromUser( fromJID );
-            message.setTextMessage( textMessage );
-            sendWebSocketMessage( message );
+            // the id is kept when the message is delivered later, so that it can be deduplicated
+            sendFrame( frameEncoder.encodeTextMessage( nextMessageId(), to, text ), null, true );
         }
     }
     public void sendStateNotificationMessage( String to, boolean composing, boolean paused, boolean active, boolean gone )
@@ -439,61 +459,124 @@ public class TreeggerWebSocketManager implements WSEventHandler
         if( authenticated )
         {
             lastActivity = System.currentTimeMillis();
-            WebSocketMessage.Builder message = WebSocketMessage.newBuilder();
-            TextMessage.Builder textMessage = TextMessage.newBuilder();
-            
-            textMessage.setFromUser( fromJID );
-            textMessage.setToUser( to );
-            textMessage.setType("chat");
-
-            textMessage.setComposing( composing );
-            textMessage.setActive( active );
-            textMessage.setPaused( paused );
-            textMessage.setGone( gone );
-
-            message.setTextMessage( textMessage );
-            sendWebSocketMessage( message );
+            sendFrame( frameEncoder.encodeChatState( to, composing, paused, active, gone ), "state:" + to, false );
         }
     }
 
     
     // ----------------------------------------------------------------------------
     // ----------------------------------------------------------------------------
-    private Queue<WebSocketMessage.Builder> laterDeliveryQueue = new ConcurrentLinkedQueue<WebSocketMessage.Builder>();
+    // text messages waiting for the connection, replayed after authentication
+    private Outbox outbox;
+    // appends to the outbox and replays it in order, off the threads which send
+    private final Executor outboxExecutor = new SerialExecutor();
+    
+    private final OutboundWriter outboundWriter = new OutboundWriter( OutboundWriter.DEFAULT_CAPACITY, new OutboundWriter.FrameSink()
+    {
+        public void send( byte[] frame ) throws IOException
+        {
+            WSConnector connector = wsConnector;
+            if( connector == null || connector.isClosed() ) throw new IOException( "Connection closed" );
+            connector.send( frame );
+        }
+        
+        public void onSent( byte[] frame )
+        {
+            outbox.confirm( frame );
+        }
+        
+        public void onUndelivered( byte[] frame )
+        {
+            // a frame from the outbox keeps its place there
+            if( !outbox.release( frame ) ) deliverLater( frame );
+        }
+    } );
+    
+    public int getOutboundQueueDepth()
+    {
+        return outboundWriter.getQueueDepth();
+    }
+    
+    /**
+     * When true, optional messages such as chat states should not be sent.
+     */
+    public boolean isOutboundCongested()
+    {
+        return outboundWriter.isCongested();
+    }
+    
+    public OutboundWriter getOutboundWriter()
+    {
+        return outboundWriter;
+    }
     
     private void flushLaterWebSocketMessageQueue()
     {
-        while( !laterDeliveryQueue.isEmpty() )
+        // after the frames still being added to the outbox
+        outboxExecutor.execute( new Runnable()
         {
-            WebSocketMessage.Builder message = laterDeliveryQueue.poll();
-            try
+            public void run()
             {
-                wsConnector.send( message.build().toByteArray() );
+                // the frames are removed from the outbox once sent
+                byte[] frame;
+                while( ( frame = outbox.next() ) != null )
+                {
+                    if( !outboundWriter.offer( frame, null, true ) )
+                    {
+                        outbox.release( frame );
+                        break;
+                    }
+                }
             }
-            catch ( IOException e )
+        } );
+    }
+    
+    // called from the UI thread by sendFrame: the outbox is written on outboxExecutor
+    private void deliverLater( final byte[] frame )
+    {
+        outboxExecutor.execute( new Runnable()
+        {
+            public void run()
             {
-                Log.w( TAG, e.getMessage(), e );
+                if( !outbox.add( frame ) )
+                {
+                    Log.w( TAG, "Outbox full, message lost" );
+                }
             }
-        }
+        } );
     }
     
-    private void sendWebSocketMessage( final WebSocketMessage.Builder message )
+    // presences, text messages, chat states and pings are encoded without builders
+    private final FrameEncoder frameEncoder = new FrameEncoder();
+    
+    private void sendWebSocketMessage( final WebSocketMessage.Builder builder )
     {
-        try
+        sendFrame( builder.build().toByteArray(), null, false );
+    }
+    
+    /**
+     * @param coalescingKey frames with the same key supersede each other, null when every frame counts
+     * @param durable true for a frame to keep in the outbox when it cannot be sent, such as a text message:
+     * other frames, chat states for instance, would be stale by then
+     */
+    private void sendFrame( byte[] frame, String coalescingKey, boolean durable )
+    {
+        if( (getState() == STATE_CONNECTED || getState() == STATE_SIGNINGDOUT ) && wsConnector != null && !wsConnector.isClosed()  )
         {
-            if( (connectionState == STATE_CONNECTED || connectionState == STATE_SIGNINGDOUT ) && wsConnector != null && !wsConnector.isClosed()  )
+            if( !outboundWriter.offer( frame, coalescingKey, durable ) )
             {
-                wsConnector.send( message.build().toByteArray() );
+                Log.w( TAG, "Outbound queue full" );
+                if( durable ) deliverLater( frame );
             }
             else
             {
-                if( message.hasTextMessage() ) laterDeliveryQueue.add( message );
-                connect();
+                lastTraffic = System.currentTimeMillis();
             }
         }
-        catch ( IOException e )
+        else
         {
-            Log.w( TAG, e.getMessage(), e );
+            if( durable ) deliverLater( frame );
+            connect();
         }
     }
 
@@ -503,6 +586,8 @@ public class TreeggerWebSocketManager implements WSEventHandler
     // ----------------------------------------------------------------------------
     private final static long PAUSE_DELAY = 60*1000;
     private final static long PAUSE_DURATION = 5*60*1000;
+    // with keepalives that rare, staying connected costs less than resuming every PAUSE_DURATION
+    private final static long KEEP_CONNECTED_INTERVAL = PAUSE_DURATION/2;
     
     private boolean sleeping = false;
     private void sleep()
@@ -519,31 +604,50 @@ public class TreeggerWebSocketManager implements WSEventHandler
         }
     }
 
-    class PingTask extends TimerTask 
+    private final Object pingKey = new Object();
+    
+    private final Runnable pingTask = new Runnable()
     {
-        
         public void run() 
         {
             long now = System.currentTimeMillis();
-            if( connectionState == STATE_CONNECTED && sleeping ||
-                connectionState == STATE_CONNECTED && lastActivity + PAUSE_DELAY < now )
+            KeepAlivePolicy keepAlivePolicy = treeggerService.keepAlivePolicy;
+            boolean idle = getState() == STATE_CONNECTED && ( sleeping || lastActivity + PAUSE_DELAY < now );
+            // an idle connection stays up, probing, as long as the interval may still grow long enough
+            if( idle && !keepAlivePolicy.mayReach( KEEP_CONNECTED_INTERVAL ) )
             {
+                pendingProbe = 0;
                 sleep();
                 pause();
             }
-            else if( lastActivity + PAUSE_DURATION < now && connectionState == STATE_PAUSED )
+            else if( lastActivity + PAUSE_DURATION < now && getState() == STATE_PAUSED )
             {
                 resume();
             }
             else
             {
-                if( connectionState == STATE_CONNECTED && hasSession() )
+                if( getState() == STATE_CONNECTED && hasSession() )
                 {
-                    WebSocketMessage.Builder message = WebSocketMessage.newBuilder();
-                    Ping.Builder ping = Ping.newBuilder();
-                    ping.setId( pingId.toString() );
-                    pingId++;
-                    sendWebSocketMessage( message );
+                    if( idle && !sleeping ) sleep();
+                    if( checkMissedPongs( now ) )
+                    {
+                        Log.w( TAG, missedPongs + " pongs missed, dropping connection of " + account.name + "@" + account.socialnetwork );
+                        onKeepAliveTimeout( now );
+                        connectionLost();
+                        return;
+                    }
+                    if( pendingProbe > 0 && pendingPings.isEmpty() && ( !pongReceived || missedPongs == 0 ) )
+                    {
+                        keepAlivePolicy.onIntervalSurvived( pendingProbe );
+                        pendingProbe = 0;
+                    }
+                    long silence = now - lastTraffic;
+                    // after a missed pong, check again without waiting for the interval
+                    if( silence >= keepAlivePolicy.getInterval() || pongReceived && missedPongs > 0 )
+                    {
+                        if( pendingProbe == 0 ) pendingProbe = silence;
+                        sendPing( now );
+                    }
                 }
             }
         }
@@ -551,12 +655,101 @@ public class TreeggerWebSocketManager implements WSEventHandler
 
     
     
+    // ----------------------------------------------------------------------------
+    // ----------------------------------------------------------------------------
+    // send time of the pings waiting for their pong, by id
+    private final Map<String,Long> pendingPings = new ConcurrentHashMap<String, Long>();
+    private final LatencyStats latencyStats = new LatencyStats();
+    private volatile int missedPongs = 0;
+    // the missed pong check is only trusted once the server has answered a ping
+    private volatile boolean pongReceived = false;
+    
+    private void sendPing( long now )
+    {
+        String id = Integer.toString( pingId++ );
+        pendingPings.put( id, now );
+        // not coalesced: every ping sent is waited for in pendingPings
+        sendFrame( frameEncoder.encodePing( id ), null, false );
+    }
+    
+    private void onPong( Ping pong )
+    {
+        Long sent = pendingPings.remove( pong.getId() );
+        if( sent == null ) return;
+        latencyStats.add( System.currentTimeMillis() - sent );
+        missedPongs = 0;
+        pongReceived = true;
+    }
+    
+    /**
+     * A connection dropped after a silence: the keepalive interval may be too long for the network.
+     * The policy ignores the drops which follow a shorter silence than the interval.
+     */
+    private void onKeepAliveTimeout( long now )
+    {
+        long silence = pendingProbe > 0 ? pendingProbe : now - lastTraffic;
+        treeggerService.keepAlivePolicy.onTimeout( silence );
+        pendingProbe = 0;
+    }
+    
+    /**
+     * @return true when the connection is to be considered dead
+     */
+    private boolean checkMissedPongs( long now )
+    {
+        for( Iterator<Long> i = pendingPings.values().iterator(); i.hasNext(); )
+        {
+            if( i.next() + PONG_TIMEOUT < now )
+            {
+                i.remove();
+                missedPongs++;
+            }
+        }
+        return pongReceived && missedPongs >= MAX_MISSED_PONGS;
+    }
+    
+    public ConnectionMetrics getMetrics()
+    {
+        return new ConnectionMetrics( getState(), latencyStats, missedPongs, treeggerService.keepAlivePolicy.getInterval(),
+                                      getFastPathReconnects(), getSlowPathReconnects(), getOutboundQueueDepth() );
+    }
+    
+    
+    private static final AtomicLong messageCounter = new AtomicLong();
+    private static String nextMessageId()
+    {
+        return DEFAULT_RESOURCE + "-" + Long.toString( System.currentTimeMillis(), 36 ) + "-" + messageCounter.incrementAndGet();
+    }
+    
     private final boolean hasSession()
     {
         return sessionId != null && sessionId.length()>0;
     }
     
     
+    // ----------------------------------------------------------------------------
+    // ----------------------------------------------------------------------------
+    private boolean everAuthenticated = false;
+    private final AtomicLong fastPathReconnects = new AtomicLong();
+    private final AtomicLong slowPathReconnects = new AtomicLong();
+    
+    /**
+     * Reconnections which bound the existing session again.
+     */
+    public long getFastPathReconnects()
+    {
+        return fastPathReconnects.get();
+    }
+    
+    /**
+     * Reconnections which needed a full authentication.
+     */
+    public long getSlowPathReconnects()
+    {
+        return slowPathReconnects.get();
+    }
+    
+    
     // ----------------------------------------------------------------------------
     // ----------------------------------------------------------------------------
     // ----------------------------------------------------------------------------
@@ -565,13 +758,15 @@ public class TreeggerWebSocketManager implements WSEventHandler
     public void onOpen()
     {
         authenticated = false;
-        applyTransition( TRANSITION_CONNECTED );
+        applyTransition( ConnectionStateMachine.TRANSITION_CONNECTED );
         
     }
 
     private void postAuthentication()
     {
         authenticated = true;
+        reconnectScheduler.onConnected( System.currentTimeMillis() );
+        setReadiness( READINESS_AUTHENTICATED );
         if( signout ) signOut();
         else if( sleeping ) sendPresence( "", "away", "" );
         else sendCurrentSelectedPresence();
@@ -605,15 +800,50 @@ public class TreeggerWebSocketManager implements WSEventHandler
     }
 
     
+    private void onRosterReceived()
+    {
+        rosterReceived = true;
+        if( readiness == READINESS_AUTHENTICATED ) setReadiness( READINESS_READY );
+    }
+    
+    private final FrameDecoder.RosterHandler rosterHandler = new FrameDecoder.RosterHandler()
+    {
+        public void beginRoster()
+        {
+            treeggerService.beginRoster( account );
+        }
+        
+        public void onRosterItem( RosterItem rosterItem )
+        {
+            treeggerService.addRosterItem( account, rosterItem );
+        }
+        
+        public void endRoster( boolean push )
+        {
+            treeggerService.endRoster( account, push );
+            if( !push ) onRosterReceived();
+        }
+        
+        public void abortRoster()
+        {
+            treeggerService.abortRoster( account );
+        }
+    };
+    
     @Override
     public void onMessage( byte[] message )
     {
-        if( connectionState == STATE_CONNECTED ) 
+        lastTraffic = System.currentTimeMillis();
+        if( getState() == STATE_CONNECTED ) 
         try
         {
-            WebSocketMessage data = WebSocketMessage.newBuilder().mergeFrom( message ).build();
+            WebSocketMessage data = FrameDecoder.decode( message, rosterHandler );
             
-            if( data.hasAuthenticateResponse() )
+            if( data == null )
+            {
+                // roster streamed to the service
+            }
+            else if( data.hasAuthenticateResponse() )
             {
                 AuthenticateResponse authenticateResponse = data.getAuthenticateResponse();
                 sessionId = authenticateResponse.getSessionId();
@@ -622,6 +852,8 @@ public class TreeggerWebSocketManager implements WSEventHandler
 
                 if( hasSession() )
                 {
+                    if( everAuthenticated ) slowPathReconnects.incrementAndGet();
+                    everAuthenticated = true;
                     postAuthentication();
                 }
                 else
@@ -633,23 +865,36 @@ public class TreeggerWebSocketManager implements WSEventHandler
             }
             else if( data.hasBindResponse() )
             {
-                BindResponse authenticateResponse = data.getBindResponse();
-                sessionId = authenticateResponse.getSessionId();
+                BindResponse bindResponse = data.getBindResponse();
+                sessionId = bindResponse.getSessionId();
                 
-                treeggerService.onAuthenticatingFinished();
-
                 if( hasSession() )
                 {
+                    treeggerService.onAuthenticatingFinished();
+                    fastPathReconnects.incrementAndGet();
                     postAuthentication();
                 }
                 else
                 {
-                    if( wsConnector != null ) wsConnector.close();
+                    // the session expired on the server: full authentication on the same connection
+                    Log.v( TAG, "Bind rejected for " + account.name + "@" + account.socialnetwork );
+                    sessionId = null;
+                    authenticate( account.name, account.socialnetwork, account.password );
                 }
             }
+            else if( data.hasPing() )
+            {
+                onPong( data.getPing() );
+            }
             else if( data.hasRoster() )
             {
-                treeggerService.addRoster( account, data.getRoster() );
+                Roster roster = data.getRoster();
+                if( roster.getPush() ) treeggerService.applyRosterPush( account, roster );
+                else
+                {
+                    treeggerService.addRoster( account, roster );
+                    onRosterReceived();
+                }
             }
             else if( data.hasVcardResponse() )
             {
@@ -683,7 +928,8 @@ public class TreeggerWebSocketManager implements WSEventHandler
     public void onError( Exception e )
     {
         //treeggerService.handler.post( new DisplayToastRunnable( treeggerService, "Error: " + e.getMessage() ) );
-        reconnect();
+        if( getState() == STATE_CONNECTED ) onKeepAliveTimeout( System.currentTimeMillis() );
+        connectionLost();
     }
     
     
@@ -3330,6 +3330,13 @@ public final class WebSocketProto {
       return item_.get(index);
     }
     
+    // optional bool push = 2;
+    public static final int PUSH_FIELD_NUMBER = 2;
+    private boolean hasPush;
+    private boolean push_ = false;
+    public boolean hasPush() { return hasPush; }
+    public boolean getPush() { return push_; }
+    
     private void initFields() {
     }
     public final boolean isInitialized() {
@@ -3345,6 +3352,9 @@ public final class WebSocketProto {
       for (com.treegger.protobuf.WebSocketProto.RosterItem element : getItemList()) {
         output.writeMessage(1, element);
       }
+      if (hasPush()) {
+        output.writeBool(2, getPush());
+      }
     }
     
     private int memoizedSerializedSize = -1;
@@ -3357,6 +3367,10 @@ public final class WebSocketProto {
         size += com.google.protobuf.CodedOutputStream
           .computeMessageSize(1, element);
       }
+      if (hasPush()) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBoolSize(2, getPush());
+      }
       memoizedSerializedSize = size;
       return size;
     }
@@ -3511,6 +3525,9 @@ public final class WebSocketProto {
           }
           result.item_.addAll(other.item_);
         }
+        if (other.hasPush()) {
+          setPush(other.getPush());
+        }
         return this;
       }
       
@@ -3535,6 +3552,10 @@ public final class WebSocketProto {
               addItem(subBuilder.buildPartial());
               break;
             }
+            case 16: {
+              setPush(input.readBool());
+              break;
+            }
           }
         }
       }
@@ -3591,6 +3612,24 @@ public final class WebSocketProto {
         return this;
       }
       
+      // optional bool push = 2;
+      public boolean hasPush() {
+        return result.hasPush();
+      }
+      public boolean getPush() {
+        return result.getPush();
+      }
+      public Builder setPush(boolean value) {
+        result.hasPush = true;
+        result.push_ = value;
+        return this;
+      }
+      public Builder clearPush() {
+        result.hasPush = false;
+        result.push_ = false;
+        return this;
+      }
+      
       // @@protoc_insertion_point(builder_scope:com.treegger.protobuf.Roster)
     }
     
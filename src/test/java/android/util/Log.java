@@ -0,0 +1,86 @@
+package android.util;
+
+/**
+ * Replaces the stub of the android jar, which throws, for the classes tested on the JVM.
+ * The test classes come before the provided android jar on the test classpath.
+ */
+public final class Log
+{
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    private Log()
+    {
+    }
+
+    public static int v( String tag, String msg )
+    {
+        return println( VERBOSE, tag, msg, null );
+    }
+
+    public static int v( String tag, String msg, Throwable tr )
+    {
+        return println( VERBOSE, tag, msg, tr );
+    }
+
+    public static int d( String tag, String msg )
+    {
+        return println( DEBUG, tag, msg, null );
+    }
+
+    public static int d( String tag, String msg, Throwable tr )
+    {
+        return println( DEBUG, tag, msg, tr );
+    }
+
+    public static int i( String tag, String msg )
+    {
+        return println( INFO, tag, msg, null );
+    }
+
+    public static int i( String tag, String msg, Throwable tr )
+    {
+        return println( INFO, tag, msg, tr );
+    }
+
+    public static int w( String tag, String msg )
+    {
+        return println( WARN, tag, msg, null );
+    }
+
+    public static int w( String tag, String msg, Throwable tr )
+    {
+        return println( WARN, tag, msg, tr );
+    }
+
+    public static int w( String tag, Throwable tr )
+    {
+        return println( WARN, tag, null, tr );
+    }
+
+    public static int e( String tag, String msg )
+    {
+        return println( ERROR, tag, msg, null );
+    }
+
+    public static int e( String tag, String msg, Throwable tr )
+    {
+        return println( ERROR, tag, msg, tr );
+    }
+
+    public static boolean isLoggable( String tag, int level )
+    {
+        return level >= WARN;
+    }
+
+    // warnings and errors only, the tests print their benchmarks
+    private static int println( int priority, String tag, String msg, Throwable tr )
+    {
+        if( priority < WARN ) return 0;
+        System.err.println( tag + ": " + msg + ( tr != null ? " (" + tr + ")" : "" ) );
+        return 0;
+    }
+}
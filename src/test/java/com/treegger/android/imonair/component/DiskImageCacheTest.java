@@ -0,0 +1,171 @@
+package com.treegger.android.imonair.component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DiskImageCacheTest
+{
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        directory = File.createTempFile( "images", "" );
+        directory.delete();
+        directory.mkdirs();
+    }
+
+    @After
+    public void tearDown()
+    {
+        for( File file : directory.listFiles() ) file.delete();
+        directory.delete();
+    }
+
+    // as ImageLoader downloads an image, then records it
+    private static void download( DiskImageCache cache, String key, int length ) throws IOException
+    {
+        writeFile( cache, key, length );
+        cache.put( key );
+    }
+
+    private static void writeFile( DiskImageCache cache, String key, int length ) throws IOException
+    {
+        FileOutputStream out = new FileOutputStream( cache.getFile( key ) );
+        out.write( new byte[ length ] );
+        out.close();
+    }
+
+    private File getJournal()
+    {
+        return new File( directory, "image-journal" );
+    }
+
+    private int countJournalLines() throws IOException
+    {
+        BufferedReader reader = new BufferedReader( new FileReader( getJournal() ) );
+        int lines = 0;
+        while( reader.readLine() != null ) lines++;
+        reader.close();
+        return lines;
+    }
+
+    private static void appendToJournal( File journal, String text ) throws IOException
+    {
+        FileWriter writer = new FileWriter( journal, true );
+        writer.write( text );
+        writer.close();
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedAtTheSizeCap() throws IOException
+    {
+        DiskImageCache cache = new DiskImageCache( directory, 250 );
+        download( cache, "a", 100 );
+        download( cache, "b", 100 );
+        assertTrue( cache.get( "a" ) != null );
+        download( cache, "c", 100 );
+
+        assertEquals( 200, cache.getSize() );
+        assertEquals( 1, cache.getEvictionCount() );
+        assertFalse( cache.getFile( "b" ).exists() );
+        assertNull( cache.get( "b" ) );
+        assertEquals( cache.getFile( "c" ), cache.get( "c" ) );
+        assertEquals( 2, cache.getHitCount() );
+        assertEquals( 1, cache.getMissCount() );
+
+        // a file larger than the cache does not stay
+        download( cache, "d", 300 );
+        assertEquals( 0, cache.getSize() );
+        assertFalse( cache.getFile( "d" ).exists() );
+    }
+
+    @Test
+    public void orderOfUseSurvivesAReopen() throws IOException
+    {
+        DiskImageCache cache = new DiskImageCache( directory, 300 );
+        download( cache, "a", 100 );
+        download( cache, "b", 100 );
+        download( cache, "c", 100 );
+        cache.get( "a" );
+
+        cache = new DiskImageCache( directory, 300 );
+        assertEquals( 300, cache.getSize() );
+        download( cache, "d", 100 );
+        assertFalse( cache.getFile( "b" ).exists() );
+        download( cache, "e", 100 );
+        assertFalse( cache.getFile( "c" ).exists() );
+        assertTrue( cache.getFile( "a" ).exists() );
+    }
+
+    @Test
+    public void journalIsCompacted() throws IOException
+    {
+        DiskImageCache cache = new DiskImageCache( directory, 1000 );
+        download( cache, "a", 100 );
+        download( cache, "b", 100 );
+        for( int i = 0; i < 500; i++ ) cache.get( i % 3 == 0 ? "b" : "a" );
+        assertTrue( countJournalLines() < 250 );
+
+        // the compacted journal keeps the order: b was read last
+        cache.get( "b" );
+        cache = new DiskImageCache( directory, 200 );
+        download( cache, "c", 100 );
+        assertFalse( cache.getFile( "a" ).exists() );
+        assertTrue( cache.getFile( "b" ).exists() );
+    }
+
+    @Test
+    public void truncatedJournalLineIsIgnored() throws IOException
+    {
+        DiskImageCache cache = new DiskImageCache( directory, 400 );
+        download( cache, "a", 100 );
+        download( cache, "b", 100 );
+        download( cache, "c", 100 );
+        cache.get( "a" );
+        // a crash after the file of d was written, in the middle of its journal line
+        writeFile( cache, "d", 100 );
+        appendToJournal( getJournal(), "W d" );
+
+        cache = new DiskImageCache( directory, 400 );
+        assertEquals( 400, cache.getSize() );
+        // d is adopted as the least recently used, before the journaled files
+        download( cache, "e", 100 );
+        assertFalse( cache.getFile( "d" ).exists() );
+        download( cache, "f", 100 );
+        assertFalse( cache.getFile( "b" ).exists() );
+        assertTrue( cache.getFile( "a" ).exists() );
+    }
+
+    @Test
+    public void unreadableJournalAdoptsTheFiles() throws IOException
+    {
+        DiskImageCache cache = new DiskImageCache( directory, 400 );
+        download( cache, "a", 100 );
+        download( cache, "b", 100 );
+        appendToJournal( getJournal(), "W c 1x\n" );
+        // files cached before the journal existed
+        writeFile( cache, "c", 100 );
+        new File( directory, DiskImageCache.FILE_PREFIX + "d.tmp" ).createNewFile();
+
+        cache = new DiskImageCache( directory, 400 );
+        assertEquals( 300, cache.getSize() );
+        // rewritten with one line per file
+        assertEquals( 3, countJournalLines() );
+        assertEquals( cache.getFile( "c" ), cache.get( "c" ) );
+        assertNull( cache.get( "d.tmp" ) );
+    }
+}
@@ -0,0 +1,82 @@
+package com.treegger.android.imonair.component;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.treegger.android.imonair.service.Benchmarks;
+import com.treegger.protobuf.WebSocketProto.RosterItem;
+
+public class SortedRosterTest
+{
+    private static RosterItem item( String jid, String name )
+    {
+        return RosterItem.newBuilder().setJid( jid ).setName( name ).setSubscription( "both" ).setItemGroup( "" ).build();
+    }
+
+    private static class MapRanker implements SortedRoster.Ranker
+    {
+        private final Map<String,Integer> ranks = new HashMap<String, Integer>();
+
+        public int rankOf( RosterItem rosterItem )
+        {
+            Integer rank = ranks.get( rosterItem.getJid() );
+            return rank == null ? 4 : rank;
+        }
+    }
+
+    private static String order( SortedRoster roster )
+    {
+        StringBuilder order = new StringBuilder();
+        for( int i = 0; i < roster.size(); i++ ) order.append( roster.get( i ).getRosterItem().getName() );
+        return order.toString();
+    }
+
+    @Test
+    public void sortsByRankThenName()
+    {
+        MapRanker ranker = new MapRanker();
+        ranker.ranks.put( "c", 1 );
+        List<RosterItem> rosterItems = new ArrayList<RosterItem>();
+        rosterItems.add( item( "b", "b" ) );
+        rosterItems.add( item( "c", "c" ) );
+        rosterItems.add( item( "a", "A" ) );
+
+        SortedRoster roster = new SortedRoster();
+        roster.load( rosterItems, ranker );
+        assertEquals( "cAb", order( roster ) );
+
+        roster.setRank( "b", 0 );
+        assertEquals( "bcA", order( roster ) );
+
+        ranker.ranks.clear();
+        roster.rerank( ranker );
+        assertEquals( "Abc", order( roster ) );
+
+        roster.put( item( "d", "0" ), 4 );
+        roster.remove( "a" );
+        assertEquals( "0bc", order( roster ) );
+    }
+
+    // a full roster used to be inserted contact by contact
+    @Test
+    public void loadsALargeRosterWithOneSort()
+    {
+        int size = 20000;
+        List<RosterItem> rosterItems = new ArrayList<RosterItem>();
+        for( int i = size; i > 0; i-- ) rosterItems.add( item( "user" + i + "@host", "contact " + i ) );
+        SortedRoster roster = new SortedRoster();
+        long start = System.nanoTime();
+        roster.load( rosterItems, new MapRanker() );
+        double millis = ( System.nanoTime() - start ) / 1000000.0;
+        Benchmarks.report( "SortedRoster.load, " + size + " contacts", millis, "ms" );
+        assertEquals( size, roster.size() );
+        assertTrue( millis < 5000 );
+    }
+}
@@ -0,0 +1,62 @@
+package com.treegger.android.imonair.service;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Minimal timing and allocation loops for the benchmarks run with the tests.
+ * Results are printed, assertions only compare orders of magnitude so that a loaded machine does not fail the build.
+ */
+public class Benchmarks
+{
+    public interface Operation
+    {
+        void run( int iteration ) throws Exception;
+    }
+
+    private static final int WARMUP_ITERATIONS = 20000;
+
+    /**
+     * @return the average duration of the operation in nanoseconds, after a warm up
+     */
+    public static double nanosPerOperation( Operation operation, int iterations ) throws Exception
+    {
+        return nanosPerOperation( operation, WARMUP_ITERATIONS, iterations );
+    }
+
+    /**
+     * @param warmup iterations run before the measure, fewer for the operations which take milliseconds
+     */
+    public static double nanosPerOperation( Operation operation, int warmup, int iterations ) throws Exception
+    {
+        for( int i = 0; i < warmup; i++ ) operation.run( i );
+        long start = System.nanoTime();
+        for( int i = 0; i < iterations; i++ ) operation.run( i );
+        return (double) ( System.nanoTime() - start ) / iterations;
+    }
+
+    /**
+     * @return the average bytes allocated by the operation on the calling thread, -1 when the JVM cannot tell
+     */
+    public static double bytesPerOperation( Operation operation, int iterations ) throws Exception
+    {
+        return bytesPerOperation( operation, WARMUP_ITERATIONS, iterations );
+    }
+
+    public static double bytesPerOperation( Operation operation, int warmup, int iterations ) throws Exception
+    {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if( !( threads instanceof com.sun.management.ThreadMXBean ) ) return -1;
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        long threadId = Thread.currentThread().getId();
+        for( int i = 0; i < warmup; i++ ) operation.run( i );
+        long start = allocations.getThreadAllocatedBytes( threadId );
+        for( int i = 0; i < iterations; i++ ) operation.run( i );
+        return (double) ( allocations.getThreadAllocatedBytes( threadId ) - start ) / iterations;
+    }
+
+    public static void report( String name, double value, String unit )
+    {
+        System.out.println( String.format( "%-60s %12.1f %s", name, value, unit ) );
+    }
+}
@@ -0,0 +1,159 @@
+package com.treegger.android.imonair.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChatHistoryStoreTest
+{
+    private File directory;
+    private ChatHistoryStore store;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        directory = File.createTempFile( "history", "" );
+        directory.delete();
+        store = new ChatHistoryStore( directory );
+    }
+
+    @After
+    public void tearDown()
+    {
+        store.close();
+        File[] files = directory.listFiles();
+        if( files != null ) for( File file : files ) file.delete();
+        directory.delete();
+    }
+
+    @Test
+    public void readingUnknownConversationCreatesNoFile() throws IOException
+    {
+        assertTrue( store.readPage( "nobody@host", Long.MAX_VALUE, 50 ).isEmpty() );
+        assertEquals( 0, store.getMessageCount( "nobody@host" ) );
+        assertEquals( 0, directory.listFiles().length );
+    }
+
+    @Test
+    public void evictedConversationsAreReopened() throws IOException
+    {
+        // more conversations than open files
+        for( int i = 0; i < 20; i++ )
+        {
+            for( int j = 0; j < 3; j++ ) store.append( "user" + i + "@host", new ChatMessage( "user" + i + "@host", "message " + j ) );
+        }
+        for( int i = 0; i < 20; i++ )
+        {
+            List<ChatMessage> messages = store.readPage( "user" + i + "@host", Long.MAX_VALUE, 50 );
+            assertEquals( 3, messages.size() );
+            assertEquals( "message 2", messages.get( 2 ).text );
+            assertEquals( 2, messages.get( 2 ).seq );
+        }
+        assertEquals( 3, store.append( "user0@host", new ChatMessage( "user0@host", "message 3" ) ) );
+    }
+
+    @Test
+    public void deleteRemovesTheFiles() throws IOException
+    {
+        store.append( "a@host", new ChatMessage( "a@host", "hello" ) );
+        store.append( "b@host", new ChatMessage( "b@host", "hello" ) );
+        assertEquals( 4, directory.listFiles().length );
+
+        store.delete( "A@host" );
+        assertEquals( 2, directory.listFiles().length );
+        assertEquals( 0, store.getMessageCount( "a@host" ) );
+        assertEquals( 1, store.getMessageCount( "b@host" ) );
+
+        store.deleteAll();
+        assertEquals( 0, directory.listFiles().length );
+    }
+
+    private File getFile( String suffix )
+    {
+        for( File file : directory.listFiles() )
+        {
+            if( file.getName().endsWith( suffix ) ) return file;
+        }
+        return null;
+    }
+
+    @Test
+    public void tornRecordIsDroppedOnOpen() throws IOException
+    {
+        for( int i = 0; i < 10; i++ ) store.append( "a@host", new ChatMessage( "a@host", "message " + i ) );
+        store.close();
+
+        // a crash in the middle of the seventh record, after the index was written
+        File log = getFile( ".log" );
+        long recordLength = log.length() / 10;
+        RandomAccessFile file = new RandomAccessFile( log, "rw" );
+        file.setLength( 6 * recordLength + recordLength / 2 );
+        file.close();
+
+        assertEquals( 6, store.getMessageCount( "a@host" ) );
+        assertEquals( 6 * recordLength, log.length() );
+        assertEquals( 6 * 8, getFile( ".idx" ).length() );
+        List<ChatMessage> messages = store.readPage( "a@host", Long.MAX_VALUE, 50 );
+        assertEquals( 6, messages.size() );
+        assertEquals( "message 5", messages.get( 5 ).text );
+
+        // the next message takes the place of the torn one
+        assertEquals( 6, store.append( "a@host", new ChatMessage( "a@host", "after" ) ) );
+        store.close();
+        messages = store.readPage( "a@host", Long.MAX_VALUE, 50 );
+        assertEquals( 7, messages.size() );
+        assertEquals( "after", messages.get( 6 ).text );
+    }
+
+    @Test
+    public void appendAndReadCost() throws Exception
+    {
+        final int size = 1000000;
+        final String jid = "friend@jabber.org";
+        final String text = "Are we still on for tonight? I can bring the board games.";
+        double appendNanos = Benchmarks.nanosPerOperation( new Benchmarks.Operation()
+        {
+            public void run( int iteration ) throws Exception
+            {
+                store.append( jid, new ChatMessage( jid, text ) );
+            }
+        }, 0, size );
+        assertEquals( size, store.getMessageCount( jid ) );
+
+        final int pageSize = 50;
+        Benchmarks.Operation readHead = new Benchmarks.Operation()
+        {
+            public void run( int iteration ) throws Exception
+            {
+                store.readPage( jid, pageSize + iteration % 1000, pageSize );
+            }
+        };
+        Benchmarks.Operation readTail = new Benchmarks.Operation()
+        {
+            public void run( int iteration ) throws Exception
+            {
+                store.readPage( jid, size - iteration % 1000, pageSize );
+            }
+        };
+        double headNanos = Benchmarks.nanosPerOperation( readHead, 2000, 10000 );
+        double tailNanos = Benchmarks.nanosPerOperation( readTail, 2000, 10000 );
+
+        Benchmarks.report( "ChatHistoryStore.append, " + size + " messages", appendNanos / 1000, "us/message" );
+        Benchmarks.report( "ChatHistoryStore.readPage of " + pageSize + ", near the head", headNanos / 1000, "us/page" );
+        Benchmarks.report( "ChatHistoryStore.readPage of " + pageSize + ", near the tail", tailNanos / 1000, "us/page" );
+
+        List<ChatMessage> messages = store.readPage( jid, size, pageSize );
+        assertEquals( pageSize, messages.size() );
+        assertEquals( size - 1, messages.get( pageSize - 1 ).seq );
+        // the index makes a page independent of its position in the log
+        assertTrue( "reading near the head is not slower than near the tail", headNanos < tailNanos * 10 );
+    }
+}
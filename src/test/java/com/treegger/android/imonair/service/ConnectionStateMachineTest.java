@@ -0,0 +1,249 @@
+package com.treegger.android.imonair.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class ConnectionStateMachineTest
+{
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 20000;
+
+    private static final int[] CALLS = {
+        ConnectionStateMachine.TRANSITION_CONNECT,
+        ConnectionStateMachine.TRANSITION_CONNECTED,
+        ConnectionStateMachine.TRANSITION_PAUSE,
+        ConnectionStateMachine.TRANSITION_RECONNECT,
+        ConnectionStateMachine.TRANSITION_DISCONNECT,
+        ConnectionStateMachine.TRANSITION_RESUME,
+        ConnectionStateMachine.TRANSITION_CONNECTION_LOST,
+    };
+
+    /**
+     * Side effects as TreeggerWebSocketManager performs them, on a fake socket.
+     */
+    private static class FakeConnection implements ConnectionStateMachine.ActionHandler
+    {
+        private ConnectionStateMachine stateMachine;
+        // only touched on the executor
+        private boolean open = false;
+        private final List<int[]> steps = new ArrayList<int[]>();
+        private final AtomicInteger performed = new AtomicInteger();
+        private volatile String failure;
+
+        public void perform( int action, int from, int to )
+        {
+            steps.add( new int[] { action, from, to } );
+            switch( action )
+            {
+                case ConnectionStateMachine.ACTION_CONNECT:
+                case ConnectionStateMachine.ACTION_RESUME:
+                case ConnectionStateMachine.ACTION_RESUME_TO_SIGNOUT:
+                    open();
+                    break;
+                case ConnectionStateMachine.ACTION_RECONNECT:
+                case ConnectionStateMachine.ACTION_RESTART_CONNECTING:
+                    open = false;
+                    stateMachine.apply( ConnectionStateMachine.TRANSITION_DISCONNECTED );
+                    open();
+                    break;
+                case ConnectionStateMachine.ACTION_DISCONNECT:
+                case ConnectionStateMachine.ACTION_ABORT_CONNECTING:
+                    open = false;
+                    stateMachine.apply( ConnectionStateMachine.TRANSITION_DISCONNECTED );
+                    break;
+                case ConnectionStateMachine.ACTION_PAUSE:
+                    open = false;
+                    stateMachine.apply( ConnectionStateMachine.TRANSITION_PAUSED );
+                    break;
+                case ConnectionStateMachine.ACTION_SIGNOUT:
+                case ConnectionStateMachine.ACTION_CONNECTION_LOST:
+                    open = false;
+                    break;
+            }
+            performed.incrementAndGet();
+        }
+
+        private void open()
+        {
+            if( open && failure == null ) failure = "double connect at step " + steps.size();
+            open = true;
+        }
+    }
+
+    private FakeConnection hammer( final double signOutRate ) throws InterruptedException
+    {
+        final FakeConnection connection = new FakeConnection();
+        final ConnectionStateMachine stateMachine = new ConnectionStateMachine( new SerialExecutor(), connection );
+        connection.stateMachine = stateMachine;
+
+        final AtomicInteger applied = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch( 1 );
+        final CountDownLatch done = new CountDownLatch( THREADS );
+        for( int t = 0; t < THREADS; t++ )
+        {
+            final Random random = new Random( t );
+            new Thread( new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        for( int i = 0; i < OPERATIONS; i++ )
+                        {
+                            int transition = random.nextDouble() < signOutRate ? ConnectionStateMachine.TRANSITION_SIGNOUT : CALLS[ random.nextInt( CALLS.length ) ];
+                            if( stateMachine.apply( transition ) ) applied.incrementAndGet();
+                        }
+                    }
+                    catch ( InterruptedException e )
+                    {
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            } ).start();
+        }
+        start.countDown();
+        assertTrue( done.await( 60, TimeUnit.SECONDS ) );
+
+        // the side effects apply transitions of their own
+        long deadline = System.currentTimeMillis() + 10000;
+        int last = -1;
+        while( connection.performed.get() != last || connection.performed.get() < applied.get() )
+        {
+            last = connection.performed.get();
+            assertTrue( "side effects not performed", System.currentTimeMillis() < deadline );
+            Thread.sleep( 50 );
+        }
+
+        assertNull( connection.failure );
+        assertTrue( connection.steps.size() >= applied.get() );
+        checkSteps( connection.steps, stateMachine.getState() );
+        return connection;
+    }
+
+    // every step is a transition of the table, from the state the previous one reached
+    private static void checkSteps( List<int[]> steps, int finalState )
+    {
+        int state = ConnectionStateMachine.STATE_DISCONNECTED;
+        for( int i = 0; i < steps.size(); i++ )
+        {
+            int[] step = steps.get( i );
+            assertEquals( "step " + i, state, step[ 1 ] );
+            boolean allowed = false;
+            for( int transition = 0; transition < ConnectionStateMachine.TRANSITION_COUNT; transition++ )
+            {
+                if( ConnectionStateMachine.getTarget( transition, step[ 1 ] ) == step[ 2 ]
+                    && ConnectionStateMachine.getAction( transition, step[ 1 ] ) == step[ 0 ] ) allowed = true;
+            }
+            assertTrue( "step " + i + " not in the table", allowed );
+            state = step[ 2 ];
+        }
+        assertEquals( finalState, state );
+    }
+
+    @Test
+    public void concurrentTransitionsFollowTheTable() throws InterruptedException
+    {
+        FakeConnection connection = hammer( 0 );
+        assertTrue( connection.steps.size() > 1000 );
+    }
+
+    @Test
+    public void concurrentSignOutsFollowTheTable() throws InterruptedException
+    {
+        hammer( 0.001 );
+    }
+
+    @Test
+    public void sideEffectsRunInTransitionOrder()
+    {
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        final List<Integer> actions = new ArrayList<Integer>();
+        // an executor which runs the tasks when told to
+        ConnectionStateMachine stateMachine = new ConnectionStateMachine( new Executor()
+        {
+            public void execute( Runnable task )
+            {
+                queued.add( task );
+            }
+        }, new ConnectionStateMachine.ActionHandler()
+        {
+            public void perform( int action, int from, int to )
+            {
+                actions.add( action );
+            }
+        } );
+        assertTrue( stateMachine.apply( ConnectionStateMachine.TRANSITION_CONNECT ) );
+        assertTrue( stateMachine.apply( ConnectionStateMachine.TRANSITION_DISCONNECT ) );
+        assertEquals( ConnectionStateMachine.STATE_DISCONNECTING, stateMachine.getState() );
+
+        // the task queued last runs first: it performs both steps, in order
+        queued.get( 1 ).run();
+        queued.get( 0 ).run();
+        assertEquals( 2, actions.size() );
+        assertEquals( ConnectionStateMachine.ACTION_CONNECT, actions.get( 0 ).intValue() );
+        assertEquals( ConnectionStateMachine.ACTION_ABORT_CONNECTING, actions.get( 1 ).intValue() );
+    }
+
+    // WebSocketConnector.connect without network
+    private static void connectOffline() throws IOException
+    {
+        throw new IOException( "Network is unreachable" );
+    }
+
+    @Test
+    public void failedConnectSchedulesReconnect()
+    {
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        final ConnectionStateMachine[] stateMachine = new ConnectionStateMachine[ 1 ];
+        final AtomicInteger reconnects = new AtomicInteger();
+        // as TreeggerWebSocketManager.doConnect, on a socket which cannot connect
+        stateMachine[ 0 ] = new ConnectionStateMachine( new Executor()
+        {
+            public void execute( Runnable task )
+            {
+                queued.add( task );
+            }
+        }, new ConnectionStateMachine.ActionHandler()
+        {
+            public void perform( int action, int from, int to )
+            {
+                if( action != ConnectionStateMachine.ACTION_CONNECT ) return;
+                try
+                {
+                    connectOffline();
+                }
+                catch ( IOException e )
+                {
+                    if( stateMachine[ 0 ].apply( ConnectionStateMachine.TRANSITION_CONNECTION_LOST ) ) reconnects.incrementAndGet();
+                }
+            }
+        } );
+
+        assertTrue( stateMachine[ 0 ].apply( ConnectionStateMachine.TRANSITION_CONNECT ) );
+        while( !queued.isEmpty() ) queued.remove( 0 ).run();
+        assertEquals( ConnectionStateMachine.STATE_DISCONNECTED, stateMachine[ 0 ].getState() );
+        assertEquals( 1, reconnects.get() );
+
+        // the scheduled reconnection fails the same way and schedules the next one
+        assertTrue( stateMachine[ 0 ].apply( ConnectionStateMachine.TRANSITION_RECONNECT ) );
+        while( !queued.isEmpty() ) queued.remove( 0 ).run();
+        assertEquals( ConnectionStateMachine.STATE_DISCONNECTED, stateMachine[ 0 ].getState() );
+        assertEquals( 2, reconnects.get() );
+    }
+}
@@ -0,0 +1,135 @@
+package com.treegger.android.imonair.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.treegger.protobuf.WebSocketProto.Ping;
+import com.treegger.protobuf.WebSocketProto.Roster;
+import com.treegger.protobuf.WebSocketProto.RosterItem;
+import com.treegger.protobuf.WebSocketProto.WebSocketMessage;
+
+public class FrameDecoderTest
+{
+    private static class CountingHandler implements FrameDecoder.RosterHandler
+    {
+        private final List<RosterItem> items;
+        private int count = 0;
+        private boolean ended = false;
+        private boolean push = false;
+
+        private CountingHandler( boolean keepItems )
+        {
+            items = keepItems ? new ArrayList<RosterItem>() : null;
+        }
+
+        public void beginRoster()
+        {
+            count = 0;
+            ended = false;
+        }
+
+        public void onRosterItem( RosterItem rosterItem )
+        {
+            count++;
+            if( items != null ) items.add( rosterItem );
+        }
+
+        public void endRoster( boolean push )
+        {
+            ended = true;
+            this.push = push;
+        }
+
+        public void abortRoster()
+        {
+        }
+    }
+
+    private static byte[] rosterFrame( int size, boolean push )
+    {
+        Roster.Builder roster = Roster.newBuilder().setPush( push );
+        for( int i = 0; i < size; i++ )
+        {
+            roster.addItem( RosterItem.newBuilder().setJid( "contact" + i + "@host.com" ).setName( "Contact number " + i )
+                            .setSubscription( "both" ).setItemGroup( i % 3 == 0 ? "Friends" : "" ).build() );
+        }
+        return WebSocketMessage.newBuilder().setRoster( roster ).build().toByteArray();
+    }
+
+    @Test
+    public void streamsRosterItemsInOrder() throws Exception
+    {
+        CountingHandler handler = new CountingHandler( true );
+        assertNull( FrameDecoder.decode( rosterFrame( 100, true ), handler ) );
+        assertTrue( handler.ended );
+        assertTrue( handler.push );
+        assertEquals( 100, handler.items.size() );
+        assertEquals( "contact0@host.com", handler.items.get( 0 ).getJid() );
+        assertEquals( "Contact number 99", handler.items.get( 99 ).getName() );
+        assertEquals( "Friends", handler.items.get( 99 ).getItemGroup() );
+    }
+
+    @Test
+    public void otherFramesAreParsed() throws Exception
+    {
+        CountingHandler handler = new CountingHandler( false );
+        byte[] frame = WebSocketMessage.newBuilder().setPing( Ping.newBuilder().setId( "12" ) ).build().toByteArray();
+        WebSocketMessage message = FrameDecoder.decode( frame, handler );
+        assertNotNull( message );
+        assertEquals( "12", message.getPing().getId() );
+        assertFalse( handler.ended );
+    }
+
+    @Test
+    public void decodingCost() throws Exception
+    {
+        int[] sizes = { 1000, 10000, 50000 };
+        for( int size : sizes )
+        {
+            final byte[] frame = rosterFrame( size, false );
+            final CountingHandler handler = new CountingHandler( false );
+            final CountingHandler parsedHandler = new CountingHandler( false );
+            Benchmarks.Operation streamed = new Benchmarks.Operation()
+            {
+                public void run( int iteration ) throws Exception
+                {
+                    FrameDecoder.decode( frame, handler );
+                }
+            };
+            Benchmarks.Operation parsed = new Benchmarks.Operation()
+            {
+                public void run( int iteration ) throws Exception
+                {
+                    // what the service did before: the whole roster, then its items
+                    for( RosterItem rosterItem : WebSocketMessage.parseFrom( frame ).getRoster().getItemList() )
+                    {
+                        parsedHandler.onRosterItem( rosterItem );
+                    }
+                }
+            };
+            int iterations = 2000000 / size;
+            double streamedNanos = Benchmarks.nanosPerOperation( streamed, iterations, iterations );
+            double parsedNanos = Benchmarks.nanosPerOperation( parsed, iterations, iterations );
+            double streamedBytes = Benchmarks.bytesPerOperation( streamed, iterations, iterations );
+            double parsedBytes = Benchmarks.bytesPerOperation( parsed, iterations, iterations );
+
+            String frameName = size + " items, " + frame.length / 1024 + "KB";
+            Benchmarks.report( "FrameDecoder.decode, " + frameName, streamedNanos / 1000, "us/roster" );
+            Benchmarks.report( "WebSocketMessage.parseFrom, " + frameName, parsedNanos / 1000, "us/roster" );
+            Benchmarks.report( "FrameDecoder.decode, " + frameName, streamedBytes / 1024, "KB allocated/roster" );
+            Benchmarks.report( "WebSocketMessage.parseFrom, " + frameName, parsedBytes / 1024, "KB allocated/roster" );
+
+            assertEquals( size, handler.count );
+            assertTrue( "streaming is not slower than parsing", streamedNanos < parsedNanos * 2 );
+            if( streamedBytes >= 0 ) assertTrue( "streaming allocates no more than parsing", streamedBytes <= parsedBytes * 1.1 );
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.treegger.android.imonair.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.treegger.protobuf.WebSocketProto.Ping;
+import com.treegger.protobuf.WebSocketProto.Presence;
+import com.treegger.protobuf.WebSocketProto.TextMessage;
+import com.treegger.protobuf.WebSocketProto.WebSocketMessage;
+
+public class FrameEncoderTest
+{
+    private static final String FROM = "someone@gmail.com/AndroidIMonAir-1a2b";
+    private static final String TO = "friend@jabber.org";
+
+    private FrameEncoder encoder;
+
+    @Before
+    public void setUp()
+    {
+        encoder = new FrameEncoder();
+        encoder.setFromJID( FROM );
+    }
+
+    // the frames as they were built before FrameEncoder
+    private static byte[] builtPresence( String type, String show, String status )
+    {
+        Presence.Builder presence = Presence.newBuilder();
+        presence.setType( type );
+        presence.setShow( show );
+        presence.setStatus( status );
+        presence.setFrom( FROM );
+        return WebSocketMessage.newBuilder().setPresence( presence ).build().toByteArray();
+    }
+
+    private static byte[] builtTextMessage( String id, String to, String body )
+    {
+        TextMessage.Builder textMessage = TextMessage.newBuilder();
+        textMessage.setId( id );
+        textMessage.setBody( body );
+        textMessage.setToUser( to );
+        textMessage.setFromUser( FROM );
+        return WebSocketMessage.newBuilder().setTextMessage( textMessage ).build().toByteArray();
+    }
+
+    private static byte[] builtChatState( String to, boolean composing, boolean paused, boolean active, boolean gone )
+    {
+        TextMessage.Builder textMessage = TextMessage.newBuilder();
+        textMessage.setFromUser( FROM );
+        textMessage.setToUser( to );
+        textMessage.setType( "chat" );
+        textMessage.setComposing( composing );
+        textMessage.setActive( active );
+        textMessage.setPaused( paused );
+        textMessage.setGone( gone );
+        return WebSocketMessage.newBuilder().setTextMessage( textMessage ).build().toByteArray();
+    }
+
+    private static byte[] builtPing( String id )
+    {
+        return WebSocketMessage.newBuilder().setPing( Ping.newBuilder().setId( id ) ).build().toByteArray();
+    }
+
+    @Test
+    public void framesAreTheBuiltOnes()
+    {
+        assertArrayEquals( builtPresence( "", "away", "" ), encoder.encodePresence( "", "away", "" ) );
+        assertArrayEquals( builtPresence( "unavailable", "", "Gone fishing" ), encoder.encodePresence( "unavailable", "", "Gone fishing" ) );
+        assertArrayEquals( builtTextMessage( "id-1", TO, "hello" ), encoder.encodeTextMessage( "id-1", TO, "hello" ) );
+        assertArrayEquals( builtChatState( TO, true, false, true, false ), encoder.encodeChatState( TO, true, false, true, false ) );
+        assertArrayEquals( builtChatState( TO, false, true, false, true ), encoder.encodeChatState( TO, false, true, false, true ) );
+        assertArrayEquals( builtPing( "42" ), encoder.encodePing( "42" ) );
+    }
+
+    @Test
+    public void textIsEncodedAsTheBuilderDoes()
+    {
+        StringBuilder longBody = new StringBuilder();
+        for( int i = 0; i < 200; i++ ) longBody.append( "café 中文 " );
+        String[] bodies = {
+            "",
+            longBody.toString(),
+            // outside the BMP
+            "😀 smile",
+            // unpaired surrogates
+            "a\ud83db",
+            "end\ude00",
+        };
+        for( String body : bodies )
+        {
+            assertArrayEquals( body, builtTextMessage( "id", TO, body ), encoder.encodeTextMessage( "id", TO, body ) );
+        }
+    }
+
+    @Test
+    public void allocationCost() throws Exception
+    {
+        final String body = "Are we still on for tonight? I can bring the board games.";
+        Benchmarks.Operation encoded = new Benchmarks.Operation()
+        {
+            public void run( int iteration ) throws Exception
+            {
+                encoder.encodeTextMessage( "id-" + ( iteration & 7 ), TO, body );
+                encoder.encodePresence( "", "away", "" );
+            }
+        };
+        Benchmarks.Operation built = new Benchmarks.Operation()
+        {
+            public void run( int iteration ) throws Exception
+            {
+                builtTextMessage( "id-" + ( iteration & 7 ), TO, body );
+                builtPresence( "", "away", "" );
+            }
+        };
+        double encodedBytes = Benchmarks.bytesPerOperation( encoded, 200000 );
+        double builtBytes = Benchmarks.bytesPerOperation( built, 200000 );
+        double encodedNanos = Benchmarks.nanosPerOperation( encoded, 200000 );
+        double builtNanos = Benchmarks.nanosPerOperation( built, 200000 );
+
+        Benchmarks.report( "FrameEncoder, text message and presence", encodedBytes, "bytes allocated/op" );
+        Benchmarks.report( "builders, text message and presence", builtBytes, "bytes allocated/op" );
+        Benchmarks.report( "FrameEncoder, text message and presence", encodedNanos, "ns/op" );
+        Benchmarks.report( "builders, text message and presence", builtNanos, "ns/op" );
+
+        if( encodedBytes >= 0 ) assertTrue( "the encoder allocates less than the builders", encodedBytes < builtBytes );
+    }
+}
@@ -0,0 +1,254 @@
+package com.treegger.android.imonair.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.treegger.android.imonair.component.SortedRoster;
+import com.treegger.protobuf.WebSocketProto.Presence;
+import com.treegger.protobuf.WebSocketProto.RosterItem;
+
+public class JidTableTest
+{
+    private static final String[] SHOWS = { "", "away", "dnd", "" };
+
+    @Test
+    public void internsBareJids()
+    {
+        JidTable table = new JidTable();
+        assertEquals( JidTable.NO_ID, table.find( "a@host" ) );
+        int a = table.intern( "a@host/phone" );
+        assertEquals( a, table.intern( "a@host" ) );
+        assertEquals( a, table.find( "a@host/desktop" ) );
+        assertEquals( "a@host", table.get( a ) );
+        assertNull( table.get( 1 ) );
+
+        // past the initial capacity
+        for( int i = 0; i < 1000; i++ ) assertEquals( i + 1, table.intern( "user" + i + "@host/r" ) );
+        for( int i = 0; i < 1000; i++ ) assertEquals( i + 1, table.find( "user" + i + "@host" ) );
+        assertEquals( 1001, table.size() );
+    }
+
+    @Test
+    public void concurrentInternsAgree() throws InterruptedException
+    {
+        final JidTable table = new JidTable();
+        final int size = 20000;
+        final int[][] ids = new int[ 4 ][ size ];
+        final AtomicBoolean inconsistent = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch( ids.length + 1 );
+        for( int t = 0; t < ids.length; t++ )
+        {
+            final int[] threadIds = ids[ t ];
+            final int offset = t * 1000;
+            new Thread( new Runnable()
+            {
+                public void run()
+                {
+                    for( int i = 0; i < size; i++ )
+                    {
+                        int n = ( i + offset ) % size;
+                        threadIds[ n ] = table.intern( "user" + n + "@host/" + offset );
+                    }
+                    done.countDown();
+                }
+            } ).start();
+        }
+        // a reader finds either nothing or the JID itself
+        new Thread( new Runnable()
+        {
+            public void run()
+            {
+                for( int round = 0; round < 5; round++ )
+                {
+                    for( int n = 0; n < size; n++ )
+                    {
+                        int id = table.find( "user" + n + "@host" );
+                        if( id != JidTable.NO_ID && !( "user" + n + "@host" ).equals( table.get( id ) ) ) inconsistent.set( true );
+                    }
+                }
+                done.countDown();
+            }
+        } ).start();
+        done.await();
+
+        assertEquals( size, table.size() );
+        assertTrue( !inconsistent.get() );
+        for( int n = 0; n < size; n++ )
+        {
+            for( int t = 1; t < ids.length; t++ ) assertEquals( ids[ 0 ][ n ], ids[ t ][ n ] );
+        }
+    }
+
+    /**
+     * The contact states as the service keeps them, or behind the single monitor the service used to hold
+     * for every presence write and every presence lookup.
+     */
+    private static class Contacts
+    {
+        private final JidTable jidTable = new JidTable();
+        private final PresenceTable presenceTable = new PresenceTable();
+        private final IdArray<ContactState> contactStates = new IdArray<ContactState>();
+        // as the synchronized addPresence and getPresence of TreeggerService before
+        private final boolean serviceMonitor;
+
+        private Contacts( boolean serviceMonitor )
+        {
+            this.serviceMonitor = serviceMonitor;
+        }
+
+        private void intern( String jid )
+        {
+            jidTable.intern( jid );
+        }
+
+        private void addPresence( Presence presence )
+        {
+            if( !serviceMonitor )
+            {
+                putPresence( presence );
+                return;
+            }
+            synchronized( this )
+            {
+                putPresence( presence );
+            }
+        }
+
+        private int rank( String jid )
+        {
+            if( !serviceMonitor ) return getRank( jid );
+            synchronized( this )
+            {
+                return getRank( jid );
+            }
+        }
+
+        // TreeggerService.addPresence
+        private void putPresence( Presence presence )
+        {
+            int contact = jidTable.intern( presence.getFrom() );
+            synchronized( contactStates )
+            {
+                Presence bestPresence = presenceTable.put( contact, presence );
+                ContactState contactState = contactStates.get( contact );
+                if( contactState == null ) contactState = ContactState.EMPTY;
+                contactStates.set( contact, contactState.withPresence( bestPresence ) );
+            }
+        }
+
+        // TreeggerService.getPresence
+        private int getRank( String jid )
+        {
+            ContactState contactState = contactStates.get( jidTable.find( jid ) );
+            if( contactState == null || contactState.presence == null ) return 3;
+            return contactState.presence.getShow().length() == 0 ? 0 : 1;
+        }
+    }
+
+    /**
+     * @return the duration of a sort in nanoseconds, the presences applied per second meanwhile,
+     * and how many times the sorting thread then the writers waited for a monitor
+     */
+    private static double[] sortUnderFlood( final Contacts contacts, final List<RosterItem> rosterItems, int writers ) throws Exception
+    {
+        final int size = rosterItems.size();
+        for( RosterItem rosterItem : rosterItems ) contacts.intern( rosterItem.getJid() );
+        final AtomicBoolean flooding = new AtomicBoolean( true );
+        final AtomicLong presences = new AtomicLong();
+        final AtomicLong writersBlocked = new AtomicLong();
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final CountDownLatch stopped = new CountDownLatch( writers );
+        for( int w = 0; w < writers; w++ )
+        {
+            final int seed = w;
+            new Thread( new Runnable()
+            {
+                public void run()
+                {
+                    int i = seed;
+                    long blocked = threads.getThreadInfo( Thread.currentThread().getId() ).getBlockedCount();
+                    while( flooding.get() )
+                    {
+                        String jid = rosterItems.get( i % size ).getJid();
+                        contacts.addPresence( Presence.newBuilder().setFrom( jid + "/resource" ).setType( "" )
+                                              .setShow( SHOWS[ i & 3 ] ).setStatus( "" ).build() );
+                        i += 7;
+                    }
+                    presences.addAndGet( ( i - seed ) / 7 );
+                    writersBlocked.addAndGet( threads.getThreadInfo( Thread.currentThread().getId() ).getBlockedCount() - blocked );
+                    stopped.countDown();
+                }
+            } ).start();
+        }
+        long start = System.nanoTime();
+        long sorterBlocked = threads.getThreadInfo( Thread.currentThread().getId() ).getBlockedCount();
+        double sortNanos;
+        try
+        {
+            // as RostersView loads its roster: one rank lookup per contact, then the sort
+            final SortedRoster roster = new SortedRoster();
+            final SortedRoster.Ranker ranker = new SortedRoster.Ranker()
+            {
+                public int rankOf( RosterItem rosterItem )
+                {
+                    return contacts.rank( rosterItem.getJid() );
+                }
+            };
+            sortNanos = Benchmarks.nanosPerOperation( new Benchmarks.Operation()
+            {
+                public void run( int iteration )
+                {
+                    roster.load( rosterItems, ranker );
+                }
+            }, 20, 100 );
+            sorterBlocked = threads.getThreadInfo( Thread.currentThread().getId() ).getBlockedCount() - sorterBlocked;
+        }
+        finally
+        {
+            flooding.set( false );
+            stopped.await();
+        }
+        return new double[] { sortNanos, presences.get() * 1e9 / ( System.nanoTime() - start ), sorterBlocked, writersBlocked.get() };
+    }
+
+    @Test
+    public void sortCostUnderPresenceFlood() throws Exception
+    {
+        List<RosterItem> rosterItems = new ArrayList<RosterItem>();
+        for( int i = 0; i < 5000; i++ )
+        {
+            rosterItems.add( RosterItem.newBuilder().setJid( "contact" + i + "@host.com" ).setName( "Contact " + i )
+                             .setSubscription( "both" ).setItemGroup( "" ).build() );
+        }
+        int writers = Math.max( 1, Math.min( 3, Runtime.getRuntime().availableProcessors() - 1 ) );
+
+        double[] quiet = sortUnderFlood( new Contacts( false ), rosterItems, 0 );
+        double[] current = sortUnderFlood( new Contacts( false ), rosterItems, writers );
+        double[] serviceMonitor = sortUnderFlood( new Contacts( true ), rosterItems, writers );
+
+        Benchmarks.report( "sort of 5000 contacts, no presence", quiet[ 0 ] / 1000000, "ms/sort" );
+        Benchmarks.report( "sort under " + writers + " presence floods, lock free reads", current[ 0 ] / 1000000, "ms/sort" );
+        Benchmarks.report( "sort under " + writers + " presence floods, service monitor", serviceMonitor[ 0 ] / 1000000, "ms/sort" );
+        Benchmarks.report( "presence flood during the sorts, lock free reads", current[ 1 ], "presences/s" );
+        Benchmarks.report( "presence flood during the sorts, service monitor", serviceMonitor[ 1 ], "presences/s" );
+        Benchmarks.report( "sorting thread blocked, lock free reads", current[ 2 ], "times" );
+        Benchmarks.report( "sorting thread blocked, service monitor", serviceMonitor[ 2 ], "times" );
+        Benchmarks.report( "presence writers blocked, lock free reads", current[ 3 ], "times" );
+        Benchmarks.report( "presence writers blocked, service monitor", serviceMonitor[ 3 ], "times" );
+
+        // timings depend on the cores available, the waits do not: readers never take a lock, so they never block
+        assertEquals( 0, current[ 2 ], 0 );
+        assertEquals( 0, current[ 3 ], 0 );
+    }
+}
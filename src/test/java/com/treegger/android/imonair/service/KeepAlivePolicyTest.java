@@ -0,0 +1,156 @@
+package com.treegger.android.imonair.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class KeepAlivePolicyTest
+{
+    private static final long KEEP_CONNECTED_INTERVAL = 150*1000;
+
+    /**
+     * An idle connection checked every MIN_INTERVAL, as by the ping task, through a NAT which drops it
+     * after natTimeout of silence. The clock is virtual.
+     */
+    private static class Simulation
+    {
+        private final KeepAlivePolicy policy;
+        private final long natTimeout;
+        private long now = 0;
+        private long lastTraffic = 0;
+        private long pendingProbe = 0;
+        private int timeouts = 0;
+
+        private Simulation( long natTimeout )
+        {
+            this( natTimeout, null );
+        }
+
+        private Simulation( long natTimeout, KeepAlivePolicy.Store store )
+        {
+            this.policy = new KeepAlivePolicy( store );
+            this.natTimeout = natTimeout;
+        }
+
+        private void run( long duration )
+        {
+            long end = now + duration;
+            while( now < end )
+            {
+                now += KeepAlivePolicy.MIN_INTERVAL;
+                if( pendingProbe > 0 )
+                {
+                    // the pong of the last keepalive came back
+                    policy.onIntervalSurvived( pendingProbe );
+                    pendingProbe = 0;
+                }
+                long silence = now - lastTraffic;
+                if( silence >= policy.getInterval() )
+                {
+                    if( silence > natTimeout )
+                    {
+                        policy.onTimeout( silence );
+                        timeouts++;
+                    }
+                    else
+                    {
+                        pendingProbe = silence;
+                    }
+                    // keepalive sent, or connection opened again
+                    lastTraffic = now;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void intervalGrowsUpToTheNatTimeout()
+    {
+        Simulation simulation = new Simulation( 5*60*1000 );
+        simulation.run( 10*60*1000 );
+        long early = simulation.policy.getInterval();
+        simulation.run( 4*60*60*1000 );
+
+        assertTrue( simulation.policy.getInterval() > early );
+        assertTrue( simulation.policy.getSafeInterval() >= KEEP_CONNECTED_INTERVAL );
+        assertTrue( simulation.policy.getInterval() <= 5*60*1000 );
+        assertTrue( simulation.policy.mayReach( KEEP_CONNECTED_INTERVAL ) );
+
+        // each failed probe lowers the ceiling, then the connection is never dropped again
+        int timeouts = simulation.timeouts;
+        assertTrue( timeouts > 0 && timeouts <= 3 );
+        simulation.run( 4*60*60*1000 );
+        assertEquals( timeouts, simulation.timeouts );
+    }
+
+    @Test
+    public void strictNatEndsTheProbing()
+    {
+        Simulation simulation = new Simulation( 100*1000 );
+        assertTrue( simulation.policy.mayReach( KEEP_CONNECTED_INTERVAL ) );
+        simulation.run( 2*60*60*1000 );
+
+        assertFalse( simulation.policy.mayReach( KEEP_CONNECTED_INTERVAL ) );
+        assertTrue( simulation.policy.getSafeInterval() <= 100*1000 );
+        assertTrue( simulation.policy.getSafeInterval() > KeepAlivePolicy.MIN_INTERVAL );
+    }
+
+    @Test
+    public void dropsAfterAShortSilenceAreIgnored()
+    {
+        KeepAlivePolicy policy = new KeepAlivePolicy();
+        for( int i = 0; i < 4; i++ ) policy.onIntervalSurvived( policy.getInterval() );
+        long interval = policy.getInterval();
+        assertTrue( interval > KeepAlivePolicy.MIN_INTERVAL );
+
+        policy.onTimeout( interval - 1 );
+        assertEquals( interval, policy.getInterval() );
+        assertTrue( policy.mayReach( KeepAlivePolicy.MAX_INTERVAL ) );
+
+        policy.onTimeout( interval );
+        assertFalse( policy.mayReach( interval ) );
+    }
+
+    // the preferences of the service
+    private static class MapStore implements KeepAlivePolicy.Store
+    {
+        private final Map<Integer,long[]> saved = new HashMap<Integer, long[]>();
+
+        public long[] load( int networkType )
+        {
+            return saved.get( networkType );
+        }
+
+        public void save( int networkType, long safeInterval, long ceiling )
+        {
+            saved.put( networkType, new long[] { safeInterval, ceiling } );
+        }
+    }
+
+    @Test
+    public void learnedIntervalSurvivesARestart()
+    {
+        MapStore store = new MapStore();
+        Simulation simulation = new Simulation( 5*60*1000, store );
+        simulation.run( 4*60*60*1000 );
+        long safeInterval = simulation.policy.getSafeInterval();
+        assertTrue( safeInterval >= KEEP_CONNECTED_INTERVAL );
+
+        // the service is restarted: no probing from MIN_INTERVAL again, nor above the failed probes
+        Simulation restarted = new Simulation( 5*60*1000, store );
+        assertEquals( safeInterval, restarted.policy.getInterval() );
+        restarted.run( 4*60*60*1000 );
+        assertEquals( 0, restarted.timeouts );
+
+        // on another network it is learned separately
+        restarted.policy.setNetworkType( 1 );
+        assertEquals( KeepAlivePolicy.MIN_INTERVAL, restarted.policy.getInterval() );
+        restarted.policy.setNetworkType( KeepAlivePolicy.UNKNOWN_NETWORK );
+        assertEquals( safeInterval, restarted.policy.getSafeInterval() );
+    }
+}
@@ -0,0 +1,39 @@
+package com.treegger.android.imonair.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class MessageWindowTest
+{
+    @Test( expected = IllegalArgumentException.class )
+    public void rejectsEmptyCapacity()
+    {
+        new MessageWindow( 0 );
+    }
+
+    @Test( expected = IllegalArgumentException.class )
+    public void rejectsNegativeCapacity()
+    {
+        new MessageWindow( -1 );
+    }
+
+    @Test
+    public void keepsTheLastMessages()
+    {
+        MessageWindow window = new MessageWindow( 3 );
+        for( int i = 0; i < 5; i++ ) window.add( new ChatMessage( "a@host", "message " + i ) );
+        List<ChatMessage> snapshot = window.snapshot();
+        assertEquals( 3, snapshot.size() );
+        assertEquals( "message 2", snapshot.get( 0 ).text );
+        assertEquals( "message 4", snapshot.get( 2 ).text );
+
+        // overwritten after the snapshot
+        window.add( new ChatMessage( "a@host", "message 5" ) );
+        assertNull( snapshot.get( 0 ) );
+        assertEquals( "message 3", snapshot.get( 1 ).text );
+    }
+}
@@ -0,0 +1,162 @@
+package com.treegger.android.imonair.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class OutboundWriterTest
+{
+    /**
+     * A socket which holds the writer on its first frame until opened, so that the next frames queue up behind it.
+     */
+    private static class FakeSink implements OutboundWriter.FrameSink
+    {
+        private final CountDownLatch sending = new CountDownLatch( 1 );
+        private final CountDownLatch open = new CountDownLatch( 1 );
+        private volatile boolean closed = false;
+        private final List<Byte> sent = Collections.synchronizedList( new ArrayList<Byte>() );
+        private final List<Byte> confirmed = Collections.synchronizedList( new ArrayList<Byte>() );
+        private final List<Byte> undelivered = Collections.synchronizedList( new ArrayList<Byte>() );
+
+        public void send( byte[] frame ) throws IOException
+        {
+            sending.countDown();
+            try
+            {
+                open.await();
+            }
+            catch ( InterruptedException e )
+            {
+                throw new IOException( "Interrupted" );
+            }
+            if( closed ) throw new IOException( "Connection closed" );
+            sent.add( frame[ 0 ] );
+        }
+
+        public void onSent( byte[] frame )
+        {
+            confirmed.add( frame[ 0 ] );
+        }
+
+        public void onUndelivered( byte[] frame )
+        {
+            undelivered.add( frame[ 0 ] );
+        }
+
+        // the writer is in the first send, the frames offered from now on are queued
+        private void awaitSending() throws InterruptedException
+        {
+            assertTrue( sending.await( 5, TimeUnit.SECONDS ) );
+        }
+    }
+
+    private static byte[] frame( int i )
+    {
+        return new byte[] { (byte) i, 0, 0 };
+    }
+
+    private static List<Byte> bytes( int... values )
+    {
+        List<Byte> bytes = new ArrayList<Byte>();
+        for( int value : values ) bytes.add( (byte) value );
+        return bytes;
+    }
+
+    @Test
+    public void supersededFramesAreNotSent() throws InterruptedException
+    {
+        FakeSink sink = new FakeSink();
+        OutboundWriter writer = new OutboundWriter( OutboundWriter.DEFAULT_CAPACITY, sink );
+        assertTrue( writer.offer( frame( 0 ), null, false ) );
+        sink.awaitSending();
+
+        writer.offer( frame( 1 ), "presence", false );
+        writer.offer( frame( 2 ), "state:a@host", false );
+        writer.offer( frame( 3 ), "presence", false );
+        writer.offer( frame( 4 ), null, true );
+        writer.offer( frame( 5 ), "state:a@host", false );
+        // pings are never coalesced
+        writer.offer( frame( 6 ), null, false );
+        writer.offer( frame( 7 ), null, false );
+        sink.open.countDown();
+
+        assertTrue( writer.awaitEmpty( 5000 ) );
+        // the last frame of each key takes the place of the first
+        assertEquals( bytes( 0, 3, 4, 5, 6, 7 ), sink.sent );
+        assertEquals( bytes( 4 ), sink.confirmed );
+        assertEquals( 2, writer.getCoalescedFrames() );
+        assertEquals( 6, writer.getSentFrames() );
+    }
+
+    @Test
+    public void fullQueueRejectsFrames() throws InterruptedException
+    {
+        FakeSink sink = new FakeSink();
+        OutboundWriter writer = new OutboundWriter( 4, sink );
+        assertTrue( writer.offer( frame( 0 ), null, false ) );
+        sink.awaitSending();
+
+        for( int i = 1; i <= 4; i++ ) assertTrue( writer.offer( frame( i ), null, false ) );
+        assertTrue( writer.isCongested() );
+        assertFalse( writer.offer( frame( 5 ), null, true ) );
+        assertEquals( 1, writer.getRejectedFrames() );
+        assertEquals( 4, writer.getQueueDepth() );
+
+        sink.open.countDown();
+        assertTrue( writer.awaitEmpty( 5000 ) );
+        assertFalse( writer.isCongested() );
+        assertEquals( bytes( 0, 1, 2, 3, 4 ), sink.sent );
+        // a rejected durable frame stays with the caller
+        assertTrue( sink.undelivered.isEmpty() );
+    }
+
+    @Test
+    public void closedSocketKeepsOnlyDurableFrames() throws InterruptedException
+    {
+        FakeSink sink = new FakeSink();
+        OutboundWriter writer = new OutboundWriter( OutboundWriter.DEFAULT_CAPACITY, sink );
+        assertTrue( writer.offer( frame( 0 ), null, true ) );
+        sink.awaitSending();
+
+        writer.offer( frame( 1 ), "state:a@host", false );
+        writer.offer( frame( 2 ), null, true );
+        writer.offer( frame( 3 ), null, false );
+        writer.offer( frame( 4 ), null, true );
+        sink.closed = true;
+        sink.open.countDown();
+
+        assertTrue( writer.awaitEmpty( 5000 ) );
+        assertTrue( sink.sent.isEmpty() );
+        assertTrue( sink.confirmed.isEmpty() );
+        // handed back in order, to be delivered later
+        assertEquals( bytes( 0, 2, 4 ), sink.undelivered );
+        assertEquals( 2, writer.getDroppedFrames() );
+    }
+
+    @Test
+    public void awaitEmptyWaitsForTheFrameBeingSent() throws InterruptedException
+    {
+        FakeSink sink = new FakeSink();
+        OutboundWriter writer = new OutboundWriter( OutboundWriter.DEFAULT_CAPACITY, sink );
+        assertTrue( writer.awaitEmpty( 0 ) );
+
+        writer.offer( frame( 0 ), null, false );
+        sink.awaitSending();
+        // the queue is empty, the frame is still in the socket
+        assertEquals( 0, writer.getQueueDepth() );
+        assertFalse( writer.awaitEmpty( 100 ) );
+
+        sink.open.countDown();
+        assertTrue( writer.awaitEmpty( 5000 ) );
+        assertEquals( bytes( 0 ), sink.sent );
+    }
+}
@@ -0,0 +1,198 @@
+package com.treegger.android.imonair.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OutboxTest
+{
+    private File file;
+    private Outbox outbox;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        file = File.createTempFile( "outbox", "" );
+        outbox = new Outbox( file );
+    }
+
+    @After
+    public void tearDown()
+    {
+        outbox.close();
+        file.delete();
+        new File( file.getParentFile(), file.getName() + ".head" ).delete();
+    }
+
+    private static byte[] frame( int i, int length )
+    {
+        byte[] frame = new byte[ length ];
+        frame[ 0 ] = (byte) i;
+        return frame;
+    }
+
+    @Test
+    public void releasedFramesKeepTheirPlace()
+    {
+        outbox.add( frame( 1, 10 ) );
+        outbox.add( frame( 2, 10 ) );
+        outbox.add( frame( 3, 10 ) );
+
+        byte[] first = outbox.next();
+        byte[] second = outbox.next();
+        // the connection drops: both come back from the writer, in order
+        assertTrue( outbox.release( first ) );
+        assertTrue( outbox.release( second ) );
+        assertFalse( outbox.release( frame( 4, 10 ) ) );
+
+        // a message queued meanwhile goes after them
+        outbox.add( frame( 4, 10 ) );
+        for( int i = 1; i <= 4; i++ )
+        {
+            byte[] frame = outbox.next();
+            assertEquals( i, frame[ 0 ] );
+            assertTrue( outbox.confirm( frame ) );
+        }
+        assertNull( outbox.next() );
+        assertEquals( 0, outbox.size() );
+    }
+
+    @Test
+    public void confirmedFramesAreNotReplayed()
+    {
+        outbox.add( frame( 1, 10 ) );
+        outbox.add( frame( 2, 10 ) );
+        byte[] first = outbox.next();
+        byte[] second = outbox.next();
+        assertTrue( outbox.confirm( first ) );
+        assertTrue( outbox.release( second ) );
+
+        // reopened as after a restart
+        outbox.close();
+        outbox = new Outbox( file );
+        assertEquals( 1, outbox.size() );
+        assertEquals( 2, outbox.next()[ 0 ] );
+    }
+
+    @Test
+    public void consumedPrefixIsCompacted()
+    {
+        for( int i = 0; i < 100; i++ ) assertTrue( outbox.add( frame( i, 1000 ) ) );
+        long fullLength = file.length();
+        byte[][] frames = new byte[ 90 ][];
+        for( int i = 0; i < 90; i++ ) frames[ i ] = outbox.next();
+        for( int i = 0; i < 80; i++ ) assertTrue( outbox.confirm( frames[ i ] ) );
+        assertTrue( file.length() < fullLength / 2 );
+
+        // frames in flight during the compaction are still handed out again from their place
+        assertTrue( outbox.release( frames[ 80 ] ) );
+        assertEquals( 80, outbox.next()[ 0 ] );
+
+        outbox.close();
+        outbox = new Outbox( file );
+        assertEquals( 20, outbox.size() );
+        for( int i = 80; i < 100; i++ )
+        {
+            byte[] frame = outbox.next();
+            assertEquals( (byte) i, frame[ 0 ] );
+            assertTrue( outbox.confirm( frame ) );
+        }
+        assertEquals( 0, file.length() );
+    }
+
+    @Test
+    public void sizeIsBounded()
+    {
+        outbox.close();
+        // room for three records of 100 bytes, with their 16 bytes of overhead
+        outbox = new Outbox( file, 3 * 116, Outbox.DEFAULT_MAX_AGE );
+        for( int i = 0; i < 3; i++ ) assertTrue( outbox.add( frame( i, 100 ) ) );
+        assertFalse( outbox.add( frame( 3, 100 ) ) );
+        assertEquals( 3, outbox.size() );
+
+        // frames in flight still count, confirmed ones make room
+        byte[] first = outbox.next();
+        assertFalse( outbox.add( frame( 3, 100 ) ) );
+        assertTrue( outbox.confirm( first ) );
+        assertTrue( outbox.add( frame( 3, 100 ) ) );
+        assertEquals( 3, outbox.size() );
+    }
+
+    @Test
+    public void expiredFramesAreDropped() throws InterruptedException
+    {
+        outbox.close();
+        outbox = new Outbox( file, Outbox.DEFAULT_MAX_SIZE, 200 );
+        outbox.add( frame( 1, 10 ) );
+        byte[] first = outbox.next();
+        outbox.add( frame( 2, 10 ) );
+        outbox.add( frame( 3, 10 ) );
+        Thread.sleep( 300 );
+        outbox.add( frame( 4, 10 ) );
+
+        // expired behind a frame in flight: skipped, then removed with it
+        byte[] fourth = outbox.next();
+        assertEquals( 4, fourth[ 0 ] );
+        assertTrue( outbox.confirm( first ) );
+        assertEquals( 1, outbox.size() );
+
+        // expired at the head: dropped at once
+        outbox.add( frame( 5, 10 ) );
+        assertTrue( outbox.release( fourth ) );
+        Thread.sleep( 300 );
+        assertNull( outbox.next() );
+        assertEquals( 0, outbox.size() );
+        assertEquals( 0, file.length() );
+    }
+
+    @Test
+    public void tornRecordIsDroppedOnOpen() throws IOException
+    {
+        for( int i = 0; i < 5; i++ ) outbox.add( frame( i, 100 ) );
+        outbox.close();
+
+        // a crash in the middle of the last record
+        RandomAccessFile log = new RandomAccessFile( file, "rw" );
+        log.setLength( 4 * 116 + 50 );
+        log.close();
+
+        outbox = new Outbox( file );
+        assertEquals( 4, outbox.size() );
+        assertEquals( 4 * 116, file.length() );
+        // the next frame follows the last complete one
+        assertTrue( outbox.add( frame( 5, 100 ) ) );
+        for( int i : new int[] { 0, 1, 2, 3, 5 } )
+        {
+            byte[] frame = outbox.next();
+            assertEquals( i, frame[ 0 ] );
+            assertTrue( outbox.confirm( frame ) );
+        }
+        assertNull( outbox.next() );
+    }
+
+    @Test
+    public void corruptedRecordIsDroppedOnOpen() throws IOException
+    {
+        for( int i = 0; i < 3; i++ ) outbox.add( frame( i, 100 ) );
+        outbox.close();
+
+        // the checksum of the second record does not match: it and anything after it are dropped
+        RandomAccessFile log = new RandomAccessFile( file, "rw" );
+        log.seek( 116 + 12 + 50 );
+        log.write( 1 );
+        log.close();
+
+        outbox = new Outbox( file );
+        assertEquals( 1, outbox.size() );
+        assertEquals( 116, file.length() );
+    }
+}
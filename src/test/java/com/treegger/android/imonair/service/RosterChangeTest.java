@@ -0,0 +1,79 @@
+package com.treegger.android.imonair.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.treegger.protobuf.WebSocketProto.RosterItem;
+
+public class RosterChangeTest
+{
+    private static RosterItem item( String jid, String name )
+    {
+        return RosterItem.newBuilder().setJid( jid ).setName( name ).setSubscription( "both" ).setItemGroup( "" ).build();
+    }
+
+    private static List<String> names( List<RosterItem> rosterItems )
+    {
+        List<String> names = new ArrayList<String>();
+        for( RosterItem rosterItem : rosterItems ) names.add( rosterItem.getName() );
+        return names;
+    }
+
+    @Test
+    public void keepsOrderAndAppendsAddedItems()
+    {
+        List<RosterItem> rosterItems = new ArrayList<RosterItem>();
+        rosterItems.add( item( "a", "a" ) );
+        rosterItems.add( item( "b", "b" ) );
+        rosterItems.add( item( "c", "c" ) );
+
+        List<RosterChange> changes = new ArrayList<RosterChange>();
+        changes.add( new RosterChange( RosterChange.ADDED, item( "d", "d" ) ) );
+        changes.add( new RosterChange( RosterChange.REMOVED, item( "a", "a" ) ) );
+        changes.add( new RosterChange( RosterChange.UPDATED, item( "c", "c2" ) ) );
+
+        List<RosterItem> result = RosterChange.apply( rosterItems, changes );
+        assertEquals( "[b, c2, d]", names( result ).toString() );
+        assertEquals( 3, rosterItems.size() );
+    }
+
+    @Test
+    public void lastChangeOfAJidWins()
+    {
+        List<RosterItem> rosterItems = new ArrayList<RosterItem>();
+        rosterItems.add( item( "a", "a" ) );
+
+        List<RosterChange> changes = new ArrayList<RosterChange>();
+        changes.add( new RosterChange( RosterChange.ADDED, item( "b", "b" ) ) );
+        changes.add( new RosterChange( RosterChange.REMOVED, item( "b", "b" ) ) );
+        changes.add( new RosterChange( RosterChange.REMOVED, item( "a", "a" ) ) );
+        changes.add( new RosterChange( RosterChange.ADDED, item( "a", "a2" ) ) );
+
+        assertEquals( "[a2]", names( RosterChange.apply( rosterItems, changes ) ).toString() );
+    }
+
+    // removing a whole account used to cost a scan of the merged roster per item
+    @Test
+    public void removingALargeRosterIsLinear()
+    {
+        int size = 50000;
+        List<RosterItem> rosterItems = new ArrayList<RosterItem>();
+        List<RosterChange> changes = new ArrayList<RosterChange>();
+        for( int i = 0; i < size; i++ )
+        {
+            RosterItem rosterItem = item( "user" + i + "@host", "contact " + i );
+            rosterItems.add( rosterItem );
+            changes.add( new RosterChange( RosterChange.REMOVED, rosterItem ) );
+        }
+        long start = System.nanoTime();
+        assertTrue( RosterChange.apply( rosterItems, changes ).isEmpty() );
+        long millis = ( System.nanoTime() - start ) / 1000000;
+        Benchmarks.report( "RosterChange.apply, " + size + " removals", millis, "ms" );
+        assertTrue( millis < 2000 );
+    }
+}
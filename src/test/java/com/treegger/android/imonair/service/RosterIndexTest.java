@@ -0,0 +1,94 @@
+package com.treegger.android.imonair.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.treegger.protobuf.WebSocketProto.Roster;
+import com.treegger.protobuf.WebSocketProto.RosterItem;
+
+public class RosterIndexTest
+{
+    private static Account account( long id )
+    {
+        Account account = new Account();
+        account.id = id;
+        return account;
+    }
+
+    private static RosterItem item( String jid, String name )
+    {
+        return RosterItem.newBuilder().setJid( jid ).setName( name ).setSubscription( "both" ).setItemGroup( "" ).build();
+    }
+
+    private static Roster roster( String prefix, int count )
+    {
+        Roster.Builder roster = Roster.newBuilder();
+        for( int i = 0; i < count; i++ ) roster.addItem( item( prefix + i + "@host", "contact " + i ) );
+        return roster.build();
+    }
+
+    @Test
+    public void indexesItemsByJidAcrossAccounts()
+    {
+        RosterIndex index = new RosterIndex();
+        Account first = account( 1 );
+        Account second = account( 2 );
+        assertEquals( 3, index.put( first, roster( "a", 3 ) ).size() );
+        index.put( second, Roster.newBuilder().addItem( item( "a1@host", "other name" ) ).addItem( item( "b@host", "b" ) ).build() );
+
+        assertEquals( first, index.get( "a1@host" ).account );
+        assertEquals( second, index.get( "b@host" ).account );
+
+        // the contact known by both accounts stays, through the other account
+        List<RosterChange> changes = index.remove( first );
+        assertEquals( second, index.get( "a1@host" ).account );
+        assertNull( index.get( "a0@host" ) );
+        assertEquals( 3, changes.size() );
+    }
+
+    // the lookup cost should not depend on the roster size, unlike the scan of every roster it replaced
+    @Test
+    public void lookupCost() throws Exception
+    {
+        double[] indexed = new double[ 3 ];
+        int[] sizes = { 100, 1000, 10000 };
+        for( int s = 0; s < sizes.length; s++ )
+        {
+            final int size = sizes[ s ];
+            final RosterIndex index = new RosterIndex();
+            final Roster roster = roster( "user", size );
+            index.put( account( 1 ), roster );
+            final String[] jids = new String[ size ];
+            for( int i = 0; i < size; i++ ) jids[ i ] = "user" + i + "@host";
+
+            indexed[ s ] = Benchmarks.nanosPerOperation( new Benchmarks.Operation()
+            {
+                public void run( int iteration )
+                {
+                    assertNotNull( index.get( jids[ iteration % size ] ) );
+                }
+            }, 200000 );
+            double scanned = Benchmarks.nanosPerOperation( new Benchmarks.Operation()
+            {
+                public void run( int iteration )
+                {
+                    String jid = jids[ iteration % size ];
+                    for( RosterItem rosterItem : roster.getItemList() )
+                    {
+                        if( rosterItem.getJid().equals( jid ) ) return;
+                    }
+                }
+            }, 2000 );
+            Benchmarks.report( "RosterIndex.get, " + size + " contacts", indexed[ s ], "ns/lookup" );
+            Benchmarks.report( "linear scan, " + size + " contacts", scanned, "ns/lookup" );
+            if( size >= 1000 ) assertTrue( indexed[ s ] < scanned );
+        }
+        assertTrue( "lookup cost grows with the roster size", indexed[ 2 ] < indexed[ 0 ] * 20 );
+    }
+}
@@ -0,0 +1,134 @@
+package com.treegger.android.imonair.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class SchedulerTest
+{
+    private long now;
+    private Scheduler scheduler;
+    private List<String> runs;
+
+    @Before
+    public void setUp()
+    {
+        now = 1000;
+        scheduler = new Scheduler( new Scheduler.Clock()
+        {
+            public long now()
+            {
+                return now;
+            }
+        } );
+        runs = new ArrayList<String>();
+    }
+
+    private Runnable record( final String name )
+    {
+        return new Runnable()
+        {
+            public void run()
+            {
+                runs.add( name + "@" + now );
+            }
+        };
+    }
+
+    private void advance( long millis )
+    {
+        now += millis;
+        scheduler.runDueTasks();
+    }
+
+    @Test
+    public void runsTasksInDueOrderThenScheduleOrder()
+    {
+        scheduler.schedule( record( "c" ), 300 );
+        scheduler.schedule( record( "a" ), 100 );
+        scheduler.schedule( record( "b1" ), 200 );
+        scheduler.schedule( record( "b2" ), 200 );
+
+        advance( 99 );
+        assertTrue( runs.isEmpty() );
+        advance( 1000 );
+        assertEquals( "[a@2099, b1@2099, b2@2099, c@2099]", runs.toString() );
+        assertEquals( 0, scheduler.getPendingTaskCount() );
+    }
+
+    @Test
+    public void keyedTaskReplacesThePendingOne()
+    {
+        Object key = new Object();
+        scheduler.schedule( key, record( "first" ), 100 );
+        advance( 50 );
+        scheduler.schedule( key, record( "second" ), 100 );
+        assertEquals( 1, scheduler.getPendingTaskCount() );
+
+        advance( 60 );
+        assertTrue( runs.isEmpty() );
+        advance( 40 );
+        assertEquals( "[second@1150]", runs.toString() );
+        assertFalse( scheduler.isScheduled( key ) );
+    }
+
+    @Test
+    public void cancelledTasksNeverRun()
+    {
+        Object key = new Object();
+        scheduler.schedule( key, record( "keyed" ), 100 );
+        Scheduler.Task task = scheduler.schedule( record( "task" ), 100 );
+        assertTrue( scheduler.cancel( key ) );
+        assertFalse( scheduler.cancel( key ) );
+        task.cancel();
+        assertTrue( task.isCancelled() );
+
+        advance( 200 );
+        assertTrue( runs.isEmpty() );
+        assertEquals( 0, scheduler.getPendingTaskCount() );
+    }
+
+    @Test
+    public void periodicTaskCountsItsPeriodFromTheLastRun()
+    {
+        final Object key = new Object();
+        scheduler.schedulePeriodic( key, record( "tick" ), 100, 50 );
+        advance( 100 );
+        advance( 50 );
+        // late by 30: the next run is 50 after this one
+        advance( 80 );
+        advance( 49 );
+        advance( 1 );
+        assertEquals( "[tick@1100, tick@1150, tick@1230, tick@1280]", runs.toString() );
+
+        // cancelled from its own run
+        scheduler.schedulePeriodic( key, new Runnable()
+        {
+            public void run()
+            {
+                runs.add( "last@" + now );
+                scheduler.cancel( key );
+            }
+        }, 0, 50 );
+        advance( 0 );
+        advance( 100 );
+        assertEquals( "last@1280", runs.get( runs.size() - 1 ) );
+        assertFalse( scheduler.isScheduled( key ) );
+    }
+
+    @Test
+    public void shutdownDropsEveryTask()
+    {
+        scheduler.schedule( record( "a" ), 10 );
+        scheduler.shutdown();
+        assertTrue( scheduler.schedule( record( "b" ), 10 ).isCancelled() );
+        advance( 100 );
+        assertTrue( runs.isEmpty() );
+    }
+}